@@ -1,8 +1,16 @@
 'use strict';
 
-{{ $searchDataFile := printf "%s.search-data.json" .Language.Lang }}
-{{ $searchData := resources.Get "search-data.json" | resources.ExecuteAsTemplate $searchDataFile . | resources.Minify | resources.Fingerprint }}
-{{ $searchConfig := i18n "bookSearchConfig" | default "{}" }}
+{{/*
+  The search index is generated by scripts/docBuilder.java into assets/search-index/: index.json
+  lists the indexed pages, and terms/<shard>.json holds the posting lists for the terms starting
+  with the shard's characters. Each shard is published under a fingerprinted URL, and only the
+  shards for the words in a query are fetched.
+*/}}
+{{ $searchIndex := resources.Get "search-index/index.json" }}
+{{ $shardURLs := dict }}
+{{ range resources.Match "search-index/terms/*.json" }}
+  {{ $shardURLs = merge $shardURLs (dict (path.BaseName .Name) (. | resources.Fingerprint).RelPermalink) }}
+{{ end }}
 
 {{/*
   StreamsHub override of the hugo-book theme's assets/search.js.
@@ -14,29 +22,23 @@
     project, disabled/gray otherwise
   - clicking a filter button narrows the results list to just that project (click "All" to reset)
   - groups the results list itself by project, then by sub-group within a project (e.g. Console's
-    "Documentation" vs "Quick Start"), using the "project"/"projectLabel"/"group" fields added to
-    the search index by assets/search-data.json
-  - matches on literal substring rather than fuzzy edit-distance (see transformQuery/buildQuery
-    below) and shows a highlighted preview snippet of where the match was found in the page body
+    "Documentation" vs "Quick Start"), using the "project"/"group" fields of the search index
+  - searches the prebuilt inverted index rather than building a Fuse index of every page's full
+    text in the browser, so the time until search is ready doesn't grow with the size of the site
+  - shows a preview of the start of each page, with the first query word found in it highlighted
 */}}
 
 (function () {
-  const searchDataURL = '{{ partial "docs/links/resource-precache" $searchData }}';
-  const indexConfig = Object.assign({{ $searchConfig }}, {
-    includeScore: true,
-    includeMatches: true,
-    useExtendedSearch: true,
-    keys: [
-      {
-        name: 'title',
-        weight: 0.7
-      },
-      {
-        name: 'content',
-        weight: 0.3
-      }
-    ]
-  });
+  const searchIndexURL = '{{ with $searchIndex }}{{ partial "docs/links/resource-precache" (. | resources.Fingerprint) }}{{ end }}';
+  const shardURLs = {{ $shardURLs | jsonify }};
+
+  // These must match the tokenizing and sharding in SearchIndexer in scripts/docBuilder.java
+  const MIN_TERM_LENGTH = 2;
+  const SHARD_PREFIX_LENGTH = 2;
+
+  // A word in the title counts for more than many mentions of it in the body of the page
+  const TITLE_WEIGHT = 4;
+  const CONTENT_WEIGHT = 0.5;
 
   // Enough headroom that grouping/filtering has something to work with, without the modal
   // scrolling forever on a broad query. This site has ~40 indexed pages total.
@@ -46,6 +48,18 @@
   // this list (e.g. orphaned tutorial content) is appended afterward, alphabetically by key.
   const PROJECT_ORDER = ['console', 'flink-sql-runner', 'strimzi-mcp-server', 'explore', 'announcements', 'community', 'home'];
 
+  // Display names for the "project" keys in the index; anything else is shown humanized.
+  const PROJECT_LABELS = {
+    'console': 'Console',
+    'flink-sql-runner': 'Flink SQL Runner',
+    'strimzi-mcp-server': 'MCP Server for Strimzi',
+    'explore': 'Explore',
+    'announcements': 'Announcements',
+    'community': 'Community',
+    'docs': 'Flink SQL Tutorials',
+    'home': 'Home'
+  };
+
   const input = document.querySelector('#book-search-input');
   const filters = document.querySelector('#book-search-filters');
   const results = document.querySelector('#book-search-results');
@@ -59,6 +73,12 @@
   let allProjects = [];
   // Currently selected filter button; null means "All".
   let activeProject = null;
+  // The indexed pages, indexed by the page ids used in the posting lists.
+  let documents = [];
+  // Shard name -> promise of its {term: [[page id, title occurrences, content occurrences], ...]}
+  const shards = new Map();
+  // Incremented per query, so results for a query that has since been replaced are dropped.
+  let querySequence = 0;
 
   input.addEventListener('focus', init);
   input.addEventListener('keyup', onQueryChange);
@@ -99,11 +119,15 @@
     input.removeEventListener('focus', init); // init once
     input.required = true;
 
-    fetch(searchDataURL)
-      .then(pages => pages.json())
-      .then(pages => {
-        window.bookSearchIndex = new Fuse(pages, indexConfig);
-        allProjects = collectProjects(pages);
+    if (!searchIndexURL) {
+      return;
+    }
+
+    fetch(searchIndexURL)
+      .then(index => index.json())
+      .then(index => {
+        documents = index.documents;
+        allProjects = collectProjects(documents);
       })
       .then(() => input.required = false)
       .then(onQueryChange);
@@ -117,7 +141,7 @@
     const labels = new Map();
     pages.forEach(function (page) {
       if (!labels.has(page.project)) {
-        labels.set(page.project, page.projectLabel || page.project);
+        labels.set(page.project, projectLabel(page.project));
       }
     });
 
@@ -130,52 +154,134 @@
   }
 
   /**
-   * Fuse's default matching is fuzzy (edit-distance) - on a long page-body field like "content"
-   * this readily produces false positives (e.g. "flink" fuzzy-matching a Console page that never
-   * mentions Flink at all, just because its scattered letters appear within a large enough blob
-   * of unrelated text). Prefixing every word with "'" switches Fuse's extended-search syntax to
-   * literal substring inclusion instead - each word must actually appear in the title/content as
-   * written (case-insensitive), and multiple words are required together (space = logical AND).
-   * This also gives cleaner, more predictable match indices to build the preview snippet from.
-   * @param {String} raw
+   * @param {String} key
    * @returns {String}
    */
-  function transformQuery(raw) {
-    return raw
-      .trim()
-      .split(/\s+/)
-      .filter(Boolean)
-      .map(word => "'" + word)
-      .join(' ');
+  function projectLabel(key) {
+    return PROJECT_LABELS[key] || key.split(/[-_]/).map(word => word.charAt(0).toUpperCase() + word.slice(1)).join(' ');
+  }
+
+  /**
+   * Splits text into lower case terms the same way the index was built, on anything that isn't a
+   * letter or digit.
+   * @param {String} text
+   * @returns {Array} distinct terms
+   */
+  function tokenize(text) {
+    const terms = text.toLowerCase()
+      .split(/[^\p{L}\p{N}]+/u)
+      .filter(term => term.length >= MIN_TERM_LENGTH);
+    return Array.from(new Set(terms));
+  }
+
+  /**
+   * @param {String} term
+   * @returns {String} the name of the shard holding the term - its leading characters, with
+   *   anything other than a-z and 0-9 written as "_" and its hex UTF-16 code
+   */
+  function shardName(term) {
+    let name = '';
+    for (let i = 0; i < Math.min(SHARD_PREFIX_LENGTH, term.length); i++) {
+      const c = term.charAt(i);
+      name += /[a-z0-9]/.test(c) ? c : '_' + term.charCodeAt(i).toString(16);
+    }
+    return name;
+  }
+
+  /**
+   * @param {String} name
+   * @returns {Promise} the shard's terms and their posting lists, fetched once and then reused
+   */
+  function loadShard(name) {
+    if (!shards.has(name)) {
+      const url = shardURLs[name];
+      shards.set(name, url ? fetch(url).then(shard => shard.json()) : Promise.resolve({}));
+    }
+    return shards.get(name);
+  }
+
+  /**
+   * Scores each page containing a term which starts with the word, so the word being typed
+   * matches as a prefix. A page's score for the word comes from its best matching term, weighted
+   * by how rare the term is across the site, with whole word matches ranked above prefix matches.
+   * @param {Object} shard
+   * @param {String} word
+   * @returns {Map} page id -> score
+   */
+  function scoreWord(shard, word) {
+    const scores = new Map();
+    Object.keys(shard).forEach(function (term) {
+      if (!term.startsWith(word)) {
+        return;
+      }
+
+      const postings = shard[term];
+      const weight = (term === word ? 1 : 0.5) * Math.log(1 + documents.length / postings.length);
+      postings.forEach(function (posting) {
+        const score = weight * (TITLE_WEIGHT * Math.min(posting[1], 1) + CONTENT_WEIGHT * Math.log(1 + posting[2]));
+        scores.set(posting[0], Math.max(scores.get(posting[0]) || 0, score));
+      });
+    });
+    return scores;
+  }
+
+  /**
+   * Every word has to match (space = logical AND), as with a literal search of the page text.
+   * @param {Array} words
+   * @returns {Promise} matching index entries, best first, with the query words attached as "_words"
+   */
+  function search(words) {
+    if (!words.length) {
+      return Promise.resolve([]);
+    }
+
+    return Promise.all(words.map(word => loadShard(shardName(word)).then(shard => scoreWord(shard, word))))
+      .then(function (wordScores) {
+        const scores = new Map();
+        wordScores[0].forEach(function (score, id) {
+          if (wordScores.every(other => other.has(id))) {
+            scores.set(id, wordScores.reduce((sum, other) => sum + other.get(id), 0));
+          }
+        });
+
+        return Array.from(scores.keys())
+          .sort((a, b) => scores.get(b) - scores.get(a) || a - b)
+          .slice(0, RESULT_LIMIT)
+          .map(id => Object.assign({}, documents[id], { _words: words }));
+      });
   }
 
   function onQueryChange() {
-    if (!input.value || !window.bookSearchIndex) {
+    const sequence = ++querySequence;
+
+    if (!input.value || !documents.length) {
       activeProject = null;
       renderFilters({});
       renderResults([]);
       return;
     }
 
-    const hits = window.bookSearchIndex.search(transformQuery(input.value))
-      .slice(0, RESULT_LIMIT)
-      .map(hit => Object.assign({}, hit.item, { _matches: hit.matches }));
+    search(tokenize(input.value)).then(function (hits) {
+      if (sequence !== querySequence) {
+        return;
+      }
 
-    const counts = {};
-    hits.forEach(function (item) {
-      counts[item.project] = (counts[item.project] || 0) + 1;
-    });
+      const counts = {};
+      hits.forEach(function (item) {
+        counts[item.project] = (counts[item.project] || 0) + 1;
+      });
 
-    // If the active filter's project no longer has any matches for the new query, fall back to
-    // "All" rather than leaving the results panel stuck empty with no visible way back.
-    if (activeProject && !counts[activeProject]) {
-      activeProject = null;
-    }
+      // If the active filter's project no longer has any matches for the new query, fall back to
+      // "All" rather than leaving the results panel stuck empty with no visible way back.
+      if (activeProject && !counts[activeProject]) {
+        activeProject = null;
+      }
 
-    renderFilters(counts);
+      renderFilters(counts);
 
-    const visible = activeProject ? hits.filter(item => item.project === activeProject) : hits;
-    renderResults(visible);
+      const visible = activeProject ? hits.filter(item => item.project === activeProject) : hits;
+      renderResults(visible);
+    });
   }
 
   /**
@@ -226,7 +332,7 @@
   }
 
   /**
-   * @param {Array} items matching search-data entries, already filtered to the active project
+   * @param {Array} items matching search index entries, already filtered to the active project
    */
   function renderResults(items) {
     while (results.firstChild) {
@@ -248,7 +354,7 @@
 
     byProject.forEach(function (project) {
       const heading = element('<li class="book-search-heading"></li>');
-      heading.textContent = project.items[0].projectLabel || project.key;
+      heading.textContent = projectLabel(project.key);
       results.appendChild(heading);
 
       const byGroup = groupBy(project.items, item => item.group || '');
@@ -270,9 +376,8 @@
           titleEl.textContent = item.title;
           small.textContent = item.section;
 
-          const contentMatch = findContentMatch(item);
-          if (contentMatch) {
-            renderSnippet(snippetEl, contentMatch.value, contentMatch.indices);
+          if (item.summary) {
+            renderSnippet(snippetEl, item.summary, findSummaryMatch(item));
           } else {
             snippetEl.remove();
           }
@@ -284,23 +389,20 @@
   }
 
   /**
-   * @param {Object} item a search-data entry with a "_matches" array attached (from Fuse's
-   *   includeMatches option)
-   * @returns {Object|null} the page's full plain-text content ("value") plus the first matched
-   *   character range within it ("indices"), or null if the match was only on the title (nothing
-   *   to preview from the body)
+   * @param {Object} item a search index entry with the query words attached as "_words"
+   * @returns {[Number, Number]|null} the inclusive [start, end] character range of the first
+   *   query word found in the page's summary, or null if none of them appear in it
    */
-  function findContentMatch(item) {
-    if (!item._matches) {
-      return null;
-    }
-
-    const match = item._matches.find(m => m.key === 'content');
-    if (!match || !match.indices || !match.indices.length) {
-      return null;
-    }
-
-    return { value: match.value, indices: match.indices[0] };
+  function findSummaryMatch(item) {
+    const summary = item.summary.toLowerCase();
+    let best = null;
+    item._words.forEach(function (word) {
+      const start = summary.indexOf(word);
+      if (start !== -1 && (!best || start < best[0])) {
+        best = [start, start + word.length - 1];
+      }
+    });
+    return best;
   }
 
   /**
@@ -313,7 +415,7 @@
   function buildSnippet(text, indices) {
     const CONTEXT = 50;
     const start = indices[0];
-    const end = indices[1] + 1; // Fuse's end index is inclusive; make it exclusive for slicing
+    const end = indices[1] + 1; // The end index is inclusive; make it exclusive for slicing
 
     let from = Math.max(0, start - CONTEXT);
     let to = Math.min(text.length, end + CONTEXT);
@@ -341,11 +443,17 @@
   /**
    * Renders a snippet (prefix text + highlighted <mark> match + suffix text) into an element,
    * built from text nodes rather than innerHTML since the snippet contains raw page content.
+   * Without a match, the whole text is shown unhighlighted.
    * @param {Element} el
    * @param {String} text
-   * @param {[Number, Number]} indices
+   * @param {[Number, Number]|null} indices
    */
   function renderSnippet(el, text, indices) {
+    if (!indices) {
+      el.textContent = text;
+      return;
+    }
+
     const snippet = buildSnippet(text, indices);
     el.appendChild(document.createTextNode(snippet.prefix));
     const mark = document.createElement('mark');
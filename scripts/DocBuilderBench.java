@@ -0,0 +1,513 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+
+//JAVA 21+
+//SOURCES docBuilder.java
+//DEPS org.openjdk.jmh:jmh-core:1.37
+//DEPS org.openjdk.jmh:jmh-generator-annprocess:1.37
+//JAVAC_OPTIONS -proc:full
+
+package com.github.streamshub.site;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * JMH benchmarks for the docBuilder pipeline. Downloads are made from {@link FakeGitHub}, an in-process stand-in for
+ * the GitHub API and raw content endpoints, so the benchmarks run offline.
+ * <p>
+ * Run from the repository root, so the templates in {@value DocBuilder#defaultTemplatePath} can be found. Any JMH
+ * options are passed through, for example to run only the download benchmark against a slow server:
+ * <pre>
+ * jbang scripts/DocBuilderBench.java downloadFolder -p latencyMillis=50
+ * </pre>
+ * The {@code startup} benchmark launches docBuilder in a fresh JVM, so it needs the classpath to be made of jars, as it
+ * is when run through jbang, for the JVM to be able to create and use a class data sharing archive.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DocBuilderBench {
+
+    static final String OWNER = "streamshub";
+    static final String REPOSITORY = "console";
+    static final String REF = "main";
+    static final Path DOCS_FOLDER_PATH = Paths.get("docs");
+    static final String FRONT_MATTER = """
+        +++
+        title = 'main'
+        weight = 1
+        +++
+        """;
+
+    public static void main(String... args) throws Exception {
+        org.openjdk.jmh.Main.main(args);
+    }
+
+    /**
+     * Logs warnings only, so the benchmarks measure the work rather than the logging.
+     */
+    static void configureLogging() {
+        if (!Logger.getRootLogger().getAllAppenders().hasMoreElements()) {
+            BasicConfigurator.configure();
+        }
+        Logger.getRootLogger().setLevel(org.apache.log4j.Level.WARN);
+    }
+
+    /**
+     * A repository served by a {@link FakeGitHub}, and a fresh work directory to download it into for every call.
+     */
+    @State(Scope.Benchmark)
+    public static class DownloadState {
+
+        @Param({"50", "500"})
+        public int fileCount;
+
+        @Param({"4096", "65536"})
+        public int fileSizeBytes;
+
+        @Param({"0", "20"})
+        public long latencyMillis;
+
+        FakeGitHub gitHub;
+        ExecutorService executor;
+        Path workDir;
+        GitHubFolderDownloader downloader;
+        BuildMetrics metrics;
+
+        @Setup
+        public void startServer() throws IOException {
+            configureLogging();
+            gitHub = new FakeGitHub(fileCount, fileSizeBytes, latencyMillis);
+            executor = Executors.newVirtualThreadPerTaskExecutor();
+        }
+
+        // The download is incremental and its blobs are remembered for the run, so each call starts from scratch
+        @Setup(Level.Invocation)
+        public void createDownloader() throws IOException {
+            workDir = Files.createTempDirectory("docbuilder-bench");
+            Path cacheDir = workDir.resolve("cache");
+            metrics = new BuildMetrics();
+            downloader = new GitHubFolderDownloader("token", gitHub.apiBaseUrl(), gitHub.rawBaseUrl(),
+                GitMirrors.GITHUB_GIT_BASE, cacheDir,
+                new HttpResponseCache(cacheDir.resolve("http"), Long.MAX_VALUE),
+                new BlobStore(cacheDir.resolve("blobs")),
+                null,
+                new RequestScheduler(RequestScheduler.DEFAULT_MAX_CONCURRENT_REQUESTS, 0, metrics),
+                executor);
+        }
+
+        @TearDown(Level.Invocation)
+        public void deleteWorkDir() throws IOException {
+            FileUtils.deleteDirectory(workDir.toFile());
+        }
+
+        @TearDown
+        public void stopServer() {
+            executor.close();
+            gitHub.close();
+        }
+    }
+
+    /**
+     * A large document, with or without front matter of its own, and a file to write it to.
+     */
+    @State(Scope.Benchmark)
+    public static class FrontMatterState {
+
+        @Param({"1048576", "16777216"})
+        public int contentSizeBytes;
+
+        @Param({"false", "true"})
+        public boolean hasFrontMatter;
+
+        byte[] content;
+        Path workDir;
+        Path sourceFile;
+        Path targetFile;
+
+        @Setup
+        public void createContent() throws IOException {
+            configureLogging();
+            byte[] body = FakeGitHub.fileContent(0, contentSizeBytes);
+            content = hasFrontMatter ? concat(FRONT_MATTER.getBytes(StandardCharsets.UTF_8), body) : body;
+            workDir = Files.createTempDirectory("docbuilder-bench");
+            sourceFile = Files.write(workDir.resolve("source.adoc"), content);
+            targetFile = workDir.resolve("index.adoc");
+        }
+
+        @TearDown
+        public void deleteWorkDir() throws IOException {
+            FileUtils.deleteDirectory(workDir.toFile());
+        }
+
+        private static byte[] concat(byte[] first, byte[] second) {
+            byte[] joined = new byte[first.length + second.length];
+            System.arraycopy(first, 0, joined, 0, first.length);
+            System.arraycopy(second, 0, joined, first.length, second.length);
+            return joined;
+        }
+    }
+
+    /**
+     * A docs root and cache directory already holding a sync of a {@link FakeGitHub} repository, and the command to
+     * launch docBuilder against it in a fresh JVM, with or without an AppCDS archive created by a previous run.
+     */
+    @State(Scope.Benchmark)
+    public static class StartupState {
+
+        @Param({"false", "true"})
+        public boolean cds;
+
+        FakeGitHub gitHub;
+        Path workDir;
+        List<String> command;
+        Process process;
+
+        // The first run syncs the repository, so the measured runs start with everything cached as CI runs usually do
+        @Setup
+        public void syncOnce() throws Exception {
+            configureLogging();
+            gitHub = new FakeGitHub(50, 4096, 0);
+            workDir = Files.createTempDirectory("docbuilder-bench");
+            Path sourcesFile = workDir.resolve("sources.json");
+            new ObjectMapper().writeValue(sourcesFile.toFile(), List.of(Map.of(
+                "name", "Console",
+                "sourceOwner", OWNER,
+                "sourceRepository", REPOSITORY,
+                "developmentBranch", REF,
+                "docsFolderPath", DOCS_FOLDER_PATH.toString(),
+                "tags", List.of())));
+
+            Path archive = workDir.resolve("docBuilder.jsa");
+            command = new ArrayList<>(List.of(Paths.get(System.getProperty("java.home"), "bin", "java").toString()));
+            List<String> arguments = List.of(
+                "-cp", System.getProperty("java.class.path"),
+                DocBuilder.class.getName(),
+                "-c", sourcesFile.toString(),
+                "-r", workDir.resolve("content").toString(),
+                "--cache-dir", workDir.resolve("cache").toString(),
+                "--search-index", workDir.resolve("search-index").toString(),
+                "--api-url", gitHub.apiBaseUrl(),
+                "--raw-url", gitHub.rawBaseUrl(),
+                "token");
+
+            List<String> firstRun = new ArrayList<>(command);
+            if (cds) {
+                firstRun.add("-XX:ArchiveClassesAtExit=" + archive);
+            }
+            firstRun.addAll(arguments);
+            Process firstProcess = new ProcessBuilder(firstRun).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+            if (!firstProcess.waitFor(5, TimeUnit.MINUTES)) {
+                firstProcess.destroyForcibly();
+                throw new IllegalStateException("The first docBuilder run didn't finish within 5 minutes");
+            }
+            if (cds) {
+                if (!Files.exists(archive)) {
+                    throw new IllegalStateException("No class data sharing archive was created, is the classpath made of jars?");
+                }
+                command.add("-XX:SharedArchiveFile=" + archive);
+            }
+            command.addAll(arguments);
+        }
+
+        @TearDown(Level.Invocation)
+        public void stopDocBuilder() throws InterruptedException {
+            process.destroyForcibly();
+            process.waitFor();
+        }
+
+        @TearDown
+        public void deleteWorkDir() throws IOException {
+            gitHub.close();
+            FileUtils.deleteDirectory(workDir.toFile());
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class TemplateState {
+
+        TemplateRenderer templateRenderer;
+
+        @Setup
+        public void createRenderer() {
+            configureLogging();
+            templateRenderer = new TemplateRenderer(Paths.get(DocBuilder.defaultTemplatePath));
+        }
+    }
+
+    /**
+     * A docs root holding the development branch and {@code tagCount} tagged versions of a source.
+     */
+    @State(Scope.Benchmark)
+    public static class ContentsPageState {
+
+        @Param({"1", "10", "100"})
+        public int tagCount;
+
+        Path docsRoot;
+        Source source;
+        DocBuilder docBuilder;
+
+        @Setup
+        public void createVersions() throws IOException {
+            configureLogging();
+            docsRoot = Files.createTempDirectory("docbuilder-bench");
+
+            List<String> tags = new ArrayList<>();
+            for (int i = 0; i < tagCount; i++) {
+                tags.add("0." + i + ".0");
+            }
+            source = new Source("Console", "Documentation", Paths.get("console"), OWNER, REPOSITORY, REF,
+                DOCS_FOLDER_PATH, tags, false, null);
+
+            List<String> versions = new ArrayList<>(tags);
+            versions.add(REF);
+            for (String version : versions) {
+                Path versionDir = Files.createDirectories(docsRoot.resolve("console").resolve(version));
+                Files.writeString(versionDir.resolve("index.adoc"), FRONT_MATTER + "= Console " + version + "\n");
+            }
+
+            docBuilder = new DocBuilder(docsRoot, Paths.get(DocBuilder.defaultTemplatePath));
+        }
+
+        @TearDown
+        public void deleteDocsRoot() throws IOException {
+            FileUtils.deleteDirectory(docsRoot.toFile());
+        }
+    }
+
+    @Benchmark
+    public BuildMetrics downloadFolder(DownloadState state) throws Exception {
+        state.downloader.downloadFolder(OWNER, REPOSITORY, REF, DOCS_FOLDER_PATH, state.workDir.resolve("content"),
+            FRONT_MATTER, state.metrics.forRef(OWNER + "/" + REPOSITORY, REF));
+        return state.metrics;
+    }
+
+    /**
+     * The time from launching docBuilder to its first request reaching GitHub, which is the startup cost every CI run
+     * pays before it can do any useful work.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 10)
+    public void startup(StartupState state) throws Exception {
+        CountDownLatch firstRequest = state.gitHub.expectRequest();
+        state.process = new ProcessBuilder(state.command).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        firstRequest.await();
+    }
+
+    @Benchmark
+    public boolean writeWithFrontMatter(FrontMatterState state) throws IOException {
+        return FileTools.writeWithFrontMatter(new ByteArrayInputStream(state.content), state.targetFile, FRONT_MATTER);
+    }
+
+    @Benchmark
+    public boolean hasFrontMatter(FrontMatterState state) throws IOException {
+        try (BufferedInputStream in = new BufferedInputStream(Files.newInputStream(state.sourceFile))) {
+            return FileTools.hasFrontMatter(in, state.sourceFile);
+        }
+    }
+
+    @Benchmark
+    public String renderTemplate(TemplateState state) throws IOException {
+        return state.templateRenderer.render("indexHeader.txt", Map.of(
+            "version", REF,
+            "isDevelopmentBranch", true
+        ));
+    }
+
+    @Benchmark
+    public void createSourceContentsPage(ContentsPageState state) throws IOException {
+        state.docBuilder.createSourceContentsPage(state.source);
+    }
+}
+
+/**
+ * A local stand-in for GitHub serving a single repository, whose docs folder holds an index file and
+ * {@code fileCount} generated files of {@code fileSizeBytes} each. It serves the recursive git tree listing under
+ * {@link #apiBaseUrl()} and the raw file contents under {@link #rawBaseUrl()}, for any owner, repository and ref,
+ * waiting {@code latencyMillis} before each response.
+ */
+class FakeGitHub implements AutoCloseable {
+
+    private final long latencyMillis;
+    private final Map<String, byte[]> files = new LinkedHashMap<>();
+    private final byte[] treeResponse;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final HttpServer server;
+    private volatile CountDownLatch requestReceived = new CountDownLatch(1);
+
+    FakeGitHub(int fileCount, int fileSizeBytes, long latencyMillis) throws IOException {
+        this.latencyMillis = latencyMillis;
+
+        Path docsFolder = DocBuilderBench.DOCS_FOLDER_PATH;
+        files.put(docsFolder.resolve("index.adoc").toString(), "= Console\n\ninclude::modules/file-0.adoc[]\n".getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < fileCount; i++) {
+            files.put(docsFolder.resolve("modules").resolve("file-" + i + ".adoc").toString(), fileContent(i, fileSizeBytes));
+        }
+        // Files outside the docs folder are listed in the tree, but shouldn't be downloaded
+        files.put("README.md", "# Console\n".getBytes(StandardCharsets.UTF_8));
+
+        List<Map<String, Object>> tree = new ArrayList<>();
+        tree.add(treeNode(docsFolder.toString(), "tree", null, 0));
+        tree.add(treeNode(docsFolder.resolve("modules").toString(), "tree", null, 0));
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            tree.add(treeNode(file.getKey(), "blob", gitBlobSha(file.getValue()), file.getValue().length));
+        }
+        treeResponse = new ObjectMapper().writeValueAsBytes(Map.of(
+            "sha", gitBlobSha(new byte[0]),
+            "url", "",
+            "tree", tree,
+            "truncated", false
+        ));
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/api/", this::handleApiRequest);
+        server.createContext("/raw/", this::handleRawRequest);
+        server.start();
+    }
+
+    String apiBaseUrl() {
+        return "http://" + address() + "/api";
+    }
+
+    String rawBaseUrl() {
+        return "http://" + address() + "/raw";
+    }
+
+    /**
+     * @return A latch which is released when the server next receives a request
+     */
+    CountDownLatch expectRequest() {
+        requestReceived = new CountDownLatch(1);
+        return requestReceived;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.close();
+    }
+
+    /**
+     * @return {@code sizeBytes} of printable text, which is the same for every call with the same {@code seed}
+     */
+    static byte[] fileContent(int seed, int sizeBytes) {
+        Random random = new Random(seed);
+        byte[] content = new byte[sizeBytes];
+        for (int i = 0; i < sizeBytes; i++) {
+            content[i] = (i + 1) % 80 == 0 ? (byte) '\n' : (byte) (' ' + random.nextInt(95));
+        }
+        return content;
+    }
+
+    private String address() {
+        return server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    // /api/repos/<owner>/<repo>/git/trees/<ref>
+    private void handleApiRequest(HttpExchange exchange) throws IOException {
+        requestReceived.countDown();
+        String[] segments = exchange.getRequestURI().getPath().split("/", 7);
+        if (segments.length == 7 && segments[2].equals("repos") && segments[5].equals("git") && segments[6].startsWith("trees/")) {
+            respond(exchange, 200, treeResponse);
+        } else {
+            respond(exchange, 404, new byte[0]);
+        }
+    }
+
+    // /raw/<owner>/<repo>/<ref>/<path>
+    private void handleRawRequest(HttpExchange exchange) throws IOException {
+        requestReceived.countDown();
+        String[] segments = exchange.getRequestURI().getPath().split("/", 6);
+        byte[] content = segments.length == 6 ? files.get(segments[5]) : null;
+        if (content != null) {
+            respond(exchange, 200, content);
+        } else {
+            respond(exchange, 404, new byte[0]);
+        }
+    }
+
+    private void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        try (exchange) {
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+            if (body.length > 0) {
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Map<String, Object> treeNode(String path, String type, String sha, int size) {
+        Map<String, Object> node = new LinkedHashMap<>();
+        node.put("path", path);
+        node.put("mode", type.equals("tree") ? "040000" : "100644");
+        node.put("type", type);
+        node.put("sha", sha != null ? sha : gitBlobSha(path.getBytes(StandardCharsets.UTF_8)));
+        node.put("size", size);
+        node.put("url", "");
+        return node;
+    }
+
+    private static String gitBlobSha(byte[] content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(("blob " + content.length + "\0").getBytes(StandardCharsets.US_ASCII));
+            return HexFormat.of().formatHex(digest.digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+}
@@ -1,54 +1,150 @@
 ///usr/bin/env jbang "$0" "$@" ; exit $?
 
+//JAVA 21+
+//CDS
 //DEPS com.hubspot.jinjava:jinjava:2.8.0
 //DEPS info.picocli:picocli:4.6.3
 //DEPS ch.qos.reload4j:reload4j:1.2.19
 //DEPS com.fasterxml.jackson.core:jackson-core:2.18.2
+//DEPS com.fasterxml.jackson.core:jackson-annotations:2.18.2
 //DEPS com.fasterxml.jackson.core:jackson-databind:2.18.2
 //DEPS org.apache.commons:commons-text:1.13.0
 //DEPS commons-io:commons-io:2.18.0
+//DEPS org.asciidoctor:asciidoctorj:3.0.0
+
+package com.github.streamshub.site;
 
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import com.sun.net.httpserver.HttpServer;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.BasicConfigurator;
 
 import org.apache.commons.io.filefilter.WildcardFileFilter;
+import org.apache.commons.text.WordUtils;
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MapperFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
+
+import org.asciidoctor.Asciidoctor;
+import org.asciidoctor.Attributes;
+import org.asciidoctor.Options;
+import org.asciidoctor.SafeMode;
+import org.asciidoctor.ast.Cursor;
+import org.asciidoctor.ast.Document;
+import org.asciidoctor.ast.Section;
+import org.asciidoctor.ast.StructuralNode;
+import org.asciidoctor.log.LogRecord;
+import org.asciidoctor.log.Severity;
 
 import com.hubspot.jinjava.Jinjava;
+import com.hubspot.jinjava.interpret.Context;
+import com.hubspot.jinjava.interpret.FatalTemplateErrorsException;
+import com.hubspot.jinjava.interpret.JinjavaInterpreter;
+import com.hubspot.jinjava.interpret.TemplateError;
+import com.hubspot.jinjava.tree.Node;
 
 /**
  * @param name The human-readable name for this source, used as the page title and (unless
@@ -68,6 +164,8 @@ import com.hubspot.jinjava.Jinjava;
  * @param tags This is a list of git tags, one for each version of the docs that should be pulled
  * @param skipContentsPageCreation False by default. If true, the contents page will not be created for this source.
  *                                 This is useful if the source does not do releases and only wants the head of the development branch to be pulled
+ * @param fetchMode Optional override for how this source's docs are fetched. Defaults to the docBuilder {@code --fetch-mode}
+ *                  option when not set.
  */
 record Source(
         String name,
@@ -77,35 +175,181 @@ record Source(
         String sourceRepository,
         String developmentBranch,
         Path docsFolderPath,
-        List<String> tags, boolean skipContentsPageCreation
+        List<String> tags, boolean skipContentsPageCreation,
+        FetchMode fetchMode
 ) {
     Path outputPathOrName() {
         return outputPath != null ? outputPath : Paths.get(name);
     }
 
+    FetchMode fetchModeOr(FetchMode defaultFetchMode) {
+        return fetchMode != null ? fetchMode : defaultFetchMode;
+    }
+
     String contentsLinkTitleOrName() {
         return contentsLinkTitle != null ? contentsLinkTitle : name;
     }
 }
 
+/**
+ * How the docs folder of a source is fetched from GitHub.
+ */
+enum FetchMode {
+    /** List the repository tree through the API, then download each file in the docs folder individually. */
+    TREE,
+    /** Stream the repository zipball for the ref in a single request, extracting only the docs folder. */
+    ARCHIVE,
+    /** Fetch into a bare mirror of the repository kept in the cache directory, then read the docs folder from it. */
+    GIT
+}
+
 class GitHubFolderDownloader {
 
     static final Logger LOGGER = Logger.getLogger(GitHubFolderDownloader.class);
    
-    private static final String GITHUB_API_BASE = "https://api.github.com";
+    static final String GITHUB_API_BASE = "https://api.github.com";
+    static final String GITHUB_RAW_BASE = "https://raw.githubusercontent.com";
     private final String accessToken;
+    private final String apiBaseUrl;
+    private final String rawBaseUrl;
+    private final Path cacheDir;
+    private final GitMirrors gitMirrors;
+    private final HttpResponseCache responseCache;
+    private final BlobStore blobStore;
+    private final ImageOptimizer imageOptimizer;
+    private final RequestScheduler scheduler;
+    private final ExecutorService executor;
+    private final HttpClient httpClient;
     private final ObjectMapper mapper;
 
-    // https://docs.github.com/en/rest/using-the-rest-api/rate-limits-for-the-rest-api?apiVersion=2022-11-28#about-secondary-rate-limits
-    private static final int GITHUB_CONCURRENT_REQUEST_LIMIT = 100;
-    private static final Semaphore GITHUB_CONCURRENT_REQUEST_AVAILABLE = new Semaphore(GITHUB_CONCURRENT_REQUEST_LIMIT - 10, true);
-    
-    public GitHubFolderDownloader(String accessToken) {
+    /**
+     * @param accessToken The GitHub access token used for all requests
+     * @param apiBaseUrl The base URL of the GitHub REST API, normally {@link #GITHUB_API_BASE}
+     * @param rawBaseUrl The base URL raw file contents are downloaded from, normally {@link #GITHUB_RAW_BASE}
+     * @param gitBaseUrl The base URL repositories are cloned from in {@link FetchMode#GIT} mode, normally
+     *                   {@link GitMirrors#GITHUB_GIT_BASE}
+     * @param cacheDir The directory in which sync manifests and git mirrors are kept between runs
+     * @param responseCache The cache that tree responses are stored in and revalidated against
+     * @param blobStore The store that file contents are downloaded into, so each unique blob is only fetched once
+     * @param imageOptimizer The optimizer that images are synced through, or null to sync them as they are
+     * @param scheduler The scheduler that limits the number of concurrent requests and retries failed ones
+     * @param executor The executor that file downloads are run on. Downloads spend most of their time blocked on the
+     *                 network, so this should be a virtual thread per task executor rather than a bounded pool.
+     */
+    public GitHubFolderDownloader(String accessToken, String apiBaseUrl, String rawBaseUrl, String gitBaseUrl, Path cacheDir,
+                                  HttpResponseCache responseCache, BlobStore blobStore, ImageOptimizer imageOptimizer,
+                                  RequestScheduler scheduler, ExecutorService executor) {
         this.accessToken = accessToken;
+        this.apiBaseUrl = apiBaseUrl;
+        this.rawBaseUrl = rawBaseUrl;
+        this.cacheDir = cacheDir;
+        this.gitMirrors = new GitMirrors(accessToken, gitBaseUrl, cacheDir.resolve("git"));
+        this.responseCache = responseCache;
+        this.blobStore = blobStore;
+        this.imageOptimizer = imageOptimizer;
+        this.scheduler = scheduler;
+        this.executor = executor;
+        // A single client for the whole run, so connections are reused and requests to the same host are
+        // multiplexed over HTTP/2. Zipball requests are redirected to codeload.github.com.
+        this.httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .executor(executor)
+            .build();
         this.mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
     }
     
-    public void downloadFolder(String owner, String repo, String ref, Path path, Path destPath) throws IOException, URISyntaxException, InterruptedException {
+    /**
+     * A ref whose docs folder should be resolved by {@link #resolveRefs}.
+     *
+     * @param path The docs folder within the repository
+     */
+    public record RefQuery(String owner, String repo, String ref, Path path) {}
+
+    /**
+     * @param commitSha The SHA of the commit the ref points to
+     * @param treeSha The SHA of the docs folder's tree at that commit, which only changes when something in the
+     *                docs folder does
+     */
+    public record ResolvedRef(String commitSha, String treeSha) {}
+
+    /**
+     * Resolves the commit and docs folder tree SHAs of every ref in a single GraphQL request, however many
+     * repositories they are spread across.
+     *
+     * @return The resolved refs. Refs (or repositories) which don't exist are left out.
+     */
+    public Map<RefQuery, ResolvedRef> resolveRefs(Collection<RefQuery> refQueries) throws IOException, URISyntaxException, InterruptedException {
+        List<List<RefQuery>> repositories = new ArrayList<>(refQueries.stream()
+            .distinct()
+            .collect(Collectors.groupingBy(query -> List.of(query.owner(), query.repo()), LinkedHashMap::new, Collectors.toList()))
+            .values());
+        if (repositories.isEmpty()) {
+            return Map.of();
+        }
+
+        // Each repository and ref is given an alias, as the same field can't otherwise be queried more than once
+        StringBuilder query = new StringBuilder("query {");
+        for (int i = 0; i < repositories.size(); i++) {
+            List<RefQuery> repositoryRefs = repositories.get(i);
+            query.append(String.format(" r%d: repository(owner: %s, name: %s) {", i,
+                mapper.writeValueAsString(repositoryRefs.get(0).owner()), mapper.writeValueAsString(repositoryRefs.get(0).repo())));
+            for (int j = 0; j < repositoryRefs.size(); j++) {
+                RefQuery refQuery = repositoryRefs.get(j);
+                // Annotated tags resolve to a tag object, rather than to the commit it points at
+                query.append(String.format(" c%d: object(expression: %s) { oid ... on Tag { target { oid } } }", j,
+                    mapper.writeValueAsString(refQuery.ref())));
+                query.append(String.format(" t%d: object(expression: %s) { oid }", j,
+                    mapper.writeValueAsString(refQuery.ref() + ":" + refQuery.path())));
+            }
+            query.append(" }");
+        }
+        query.append(" }");
+
+        String graphqlUrl = apiBaseUrl + "/graphql";
+        HttpRequest request = newRequest(graphqlUrl)
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(mapper.writeValueAsString(Map.of("query", query.toString()))))
+            .build();
+        JsonNode response = scheduler.send(httpClient, request, httpResponse -> {
+            checkStatus(request, httpResponse);
+            return mapper.readTree(httpResponse.body());
+        });
+
+        // Errors are reported alongside the data that could be resolved, e.g. for a repository that doesn't exist
+        for (JsonNode error : response.path("errors")) {
+            LOGGER.warn("Unable to resolve refs: " + error.path("message").asText());
+        }
+
+        Map<RefQuery, ResolvedRef> resolvedRefs = new HashMap<>();
+        JsonNode data = response.path("data");
+        for (int i = 0; i < repositories.size(); i++) {
+            List<RefQuery> repositoryRefs = repositories.get(i);
+            JsonNode repository = data.path("r" + i);
+            for (int j = 0; j < repositoryRefs.size(); j++) {
+                JsonNode commit = repository.path("c" + j);
+                JsonNode tree = repository.path("t" + j);
+                if (commit.isObject() && tree.isObject()) {
+                    String commitSha = commit.path("target").path("oid").asText(commit.path("oid").asText());
+                    resolvedRefs.put(repositoryRefs.get(j), new ResolvedRef(commitSha, tree.path("oid").asText()));
+                }
+            }
+        }
+        return resolvedRefs;
+    }
+
+    /**
+     * Syncs the contents of {@code path} at {@code ref} into {@code destPath}.
+     * Files that already exist locally are compared against the blob SHA from the git tree and are only downloaded
+     * if they differ. Files recorded in the previous sync's manifest that are no longer in the tree are removed.
+     * Downloaded files are linked from the blob store, so a blob shared by several refs is only downloaded once.
+     * Index files have {@code frontMatter} injected as they are downloaded, unless they already start with their own.
+     * Timings and counts for the sync are recorded in {@code metrics}.
+     *
+     * @return The files which were added, modified or removed by the sync
+     */
+    public SyncManifest.Changes downloadFolder(String owner, String repo, String ref, Path path, Path destPath, String frontMatter,
+                                               BuildMetrics.ScopeMetrics metrics) throws IOException, URISyntaxException, InterruptedException {
         List<CompletableFuture<Void>> futures = new ArrayList<>();
 
         // Create destination directory if it doesn't exist
@@ -116,117 +360,4010 @@ class GitHubFolderDownloader {
         
         // Get contents of the folder
         String contentsUrl = String.format("%s/repos/%s/%s/git/trees/%s?recursive=%s",
-            GITHUB_API_BASE, owner, repo, ref, true);
-        
-        GitHubTreeResponse treeResponse = mapper.readValue(
-            makeApiRequest(contentsUrl),
-            new TypeReference<GitHubTreeResponse>() {}
-        );
+            apiBaseUrl, owner, repo, ref, true);
+
+        SyncManifest previousManifest = SyncManifest.load(mapper, manifestPath(cacheDir, owner, repo, ref), path);
+        Map<String, String> syncedFiles = new ConcurrentHashMap<>();
+        Map<String, String> localFiles = new ConcurrentHashMap<>();
 
-        if (treeResponse.truncated()) {
-            // treeResponse.tree() array is truncated after 100,000 entries.
+        // The tree is parsed as it arrives, keeping only the nodes under the docs folder. The downloads are only
+        // started once the whole tree has been read, so a truncated listing is caught before anything is written and
+        // the tree request isn't holding a scheduler permit while they are queued.
+        List<GitHubTreeNode> blobNodes = new ArrayList<>();
+        List<GitHubTreeNode> treeNodes = new ArrayList<>();
+        BuildMetrics.Timer treeTimer = metrics.time(BuildMetrics.PHASE_TREE_FETCH);
+        boolean truncated;
+        try {
+            truncated = makeApiRequest(contentsUrl, body -> {
+                // The reader is called again if the request is retried, so start from an empty listing each time
+                blobNodes.clear();
+                treeNodes.clear();
+                return parseTree(body, path, treeNode -> {
+                    if (treeNode.type().equals("tree")) {
+                        treeNodes.add(treeNode);
+                    } else if (treeNode.type().equals("blob")) {
+                        blobNodes.add(treeNode);
+                    }
+                });
+            });
+        } finally {
+            treeTimer.close();
+        }
+
+        if (truncated) {
+            // The tree array is truncated after 100,000 entries.
             // If we hit this, something has probably gone wrong.
             // https://docs.github.com/en/rest/git/trees?apiVersion=2022-11-28#get-a-tree
             throw new RuntimeException(String.format("%s response is truncated", contentsUrl));
         }
 
-        // Filter out anything that isn't part of the docs directory tree, then separate the remains into directories and files
-        List<GitHubTreeNode> treeNodes = treeResponse.tree().stream().filter(treeNode -> treeNode.path.startsWith(path)).toList();
-        List<GitHubTreeNode> directoryTreeNodes = treeNodes.stream().filter(treeNode -> treeNode.type().equals("tree")).toList();
-        List<GitHubTreeNode> fileTreeNodes = treeNodes.stream().filter(treeNode -> treeNode.type().equals("blob")).toList();
-
-        // Create the directories ahead of time so the files have somewhere to go
-        for (GitHubTreeNode treeNode : directoryTreeNodes) {
+        BuildMetrics.Timer downloadTimer = metrics.time(BuildMetrics.PHASE_FILE_DOWNLOADS);
+        try {
             // relativize() to remove the source's docs folder path e.g. 'docs/index.md' -> '0.4.0/index.md'
-            Path relativeNodePath = path.relativize(treeNode.path());
-            Files.createDirectories(destPath.resolve(relativeNodePath));
+            for (GitHubTreeNode treeNode : treeNodes) {
+                Files.createDirectories(destPath.resolve(path.relativize(treeNode.path())));
+            }
+            for (GitHubTreeNode treeNode : blobNodes) {
+                Path nodePath = treeNode.path();
+                Path relativeNodePath = path.relativize(nodePath);
+
+                // Download the files which are missing or whose contents no longer match the blob in the tree
+                futures.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        Path filePath = destPath.resolve(relativeNodePath);
+                        String fileFrontMatter = FileTools.isIndexFile(relativeNodePath) ? frontMatter : null;
+                        String expectedLocalSha = previousManifest.expectedLocalSha(relativeNodePath.toString(), treeNode.sha(), fileFrontMatter);
+
+                        String downloadUrl = String.format("%s/%s/%s/%s/%s", rawBaseUrl, owner, repo, ref, nodePath);
+                        String localSha = syncFile(filePath, treeNode.sha(), fileFrontMatter, expectedLocalSha,
+                            (fetchPath, fetchFrontMatter) -> downloadFile(downloadUrl, fetchPath, fetchFrontMatter), metrics);
+                        syncedFiles.put(relativeNodePath.toString(), treeNode.sha());
+                        if (!localSha.equals(treeNode.sha())) {
+                            localFiles.put(relativeNodePath.toString(), localSha);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }, executor));
+            }
+
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        } finally {
+            downloadTimer.close();
         }
 
-        // Download the files
-        for (GitHubTreeNode treeNode : fileTreeNodes) {
-            futures.add(CompletableFuture.runAsync(() -> {
-                // Download file
-                try {
-                    Path nodePath = treeNode.path();
-                    String downloadUrl = String.format("https://raw.githubusercontent.com/%s/%s/%s/%s", owner, repo, ref, nodePath);
+        return completeSync(owner, repo, ref, path, destPath, previousManifest,
+            new SyncManifest(path.toString(), frontMatter, new TreeMap<>(syncedFiles), new TreeMap<>(localFiles)), metrics);
+    }
+
+    /**
+     * Handles a node of a tree listing.
+     */
+    @FunctionalInterface
+    private interface TreeNodeHandler {
+        void handle(GitHubTreeNode treeNode) throws IOException;
+    }
+
+    /**
+     * Reads a recursive tree response one node at a time, passing each node under {@code path} to the handler as soon
+     * as it has been read. Nodes outside {@code path} are dropped without being bound, so the memory used doesn't grow
+     * with the size of the repository.
+     *
+     * @return Whether GitHub truncated the tree listing
+     */
+    private boolean parseTree(InputStream body, Path path, TreeNodeHandler handler) throws IOException {
+        String prefix = path.toString();
+        boolean truncated = false;
+        try (JsonParser parser = mapper.getFactory().createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Tree response is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.currentName();
+                parser.nextToken();
+                if (fieldName.equals("tree") && parser.currentToken() == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        GitHubTreeNode treeNode = readTreeNode(parser, prefix);
+                        if (treeNode != null) {
+                            handler.handle(treeNode);
+                        }
+                    }
+                } else if (fieldName.equals("truncated")) {
+                    truncated = parser.getValueAsBoolean();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return truncated;
+    }
+
+    /**
+     * Reads the tree node the parser is at the start of.
+     *
+     * @return The node, or null if it isn't under {@code prefix}
+     */
+    private static GitHubTreeNode readTreeNode(JsonParser parser, String prefix) throws IOException {
+        String nodePath = null;
+        String mode = null;
+        String type = null;
+        String sha = null;
+        int size = 0;
+        String url = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.currentName();
+            parser.nextToken();
+            switch (fieldName) {
+                case "path" -> nodePath = parser.getText();
+                case "mode" -> mode = parser.getText();
+                case "type" -> type = parser.getText();
+                case "sha" -> sha = parser.getText();
+                case "size" -> size = parser.getValueAsInt();
+                case "url" -> url = parser.getText();
+                default -> parser.skipChildren();
+            }
+        }
+
+        if (nodePath == null || !(prefix.isEmpty() || nodePath.equals(prefix) || nodePath.startsWith(prefix + "/"))) {
+            return null;
+        }
+        return new GitHubTreeNode(Paths.get(nodePath), mode, type, sha, size, url);
+    }
+
+    /**
+     * Syncs the contents of {@code path} at {@code ref} into {@code destPath} by streaming the repository's zipball
+     * and extracting only the entries under {@code path}. This is a single request per ref, at the cost of
+     * transferring the rest of the repository contents as well. Index files have {@code frontMatter} injected as they
+     * are extracted, unless they already start with their own. Timings and counts for the sync are recorded in
+     * {@code metrics}.
+     *
+     * @return The files which were added, modified or removed by the sync
+     */
+    public SyncManifest.Changes downloadFolderFromArchive(String owner, String repo, String ref, Path path, Path destPath, String frontMatter,
+                                                          BuildMetrics.ScopeMetrics metrics) throws IOException, URISyntaxException, InterruptedException {
+        LOGGER.debug(
+            String.format("Downloading %s/%s/%s from the ref %s archive to %s",
+                          owner, repo, path, ref, destPath));
+        Files.createDirectories(destPath);
+
+        String archiveUrl = String.format("%s/repos/%s/%s/zipball/%s", apiBaseUrl, owner, repo, ref);
+
+        SyncManifest previousManifest = SyncManifest.load(mapper, manifestPath(cacheDir, owner, repo, ref), path);
+        Map<String, String> syncedFiles = new HashMap<>();
+        Map<String, String> localFiles = new HashMap<>();
+
+        HttpRequest request = newRequest(archiveUrl).build();
+        BuildMetrics.Timer downloadTimer = metrics.time(BuildMetrics.PHASE_FILE_DOWNLOADS);
+        // Zip entries don't carry the git blob SHA, so the entries under the docs folder are staged in the blob store
+        // to work it out, from where they can be moved into place without another copy. They are only synced once the
+        // request has given up its scheduler permit, as optimizing images is CPU heavy.
+        List<ArchiveEntry> stagedEntries = new ArrayList<>();
+        try {
+            scheduler.send(httpClient, request, response -> {
+                checkStatus(request, response);
+
+                // A retried request starts again from the first entry
+                deleteStagedEntries(stagedEntries);
+                try (ZipInputStream zipIn = new ZipInputStream(response.body())) {
+                    ZipEntry entry;
+                    while ((entry = zipIn.getNextEntry()) != null) {
+                        // Every entry is nested under a single '<owner>-<repo>-<sha>/' folder, which we strip off
+                        Path entryPath = Paths.get(entry.getName());
+                        if (entry.isDirectory() || entryPath.getNameCount() < 2) {
+                            continue;
+                        }
+                        Path nodePath = entryPath.subpath(1, entryPath.getNameCount());
+                        if (!nodePath.startsWith(path)) {
+                            continue;
+                        }
+
+                        Path relativeNodePath = path.relativize(nodePath);
+                        if (!destPath.resolve(relativeNodePath).normalize().startsWith(destPath.normalize())) {
+                            throw new IOException("Archive entry " + entry.getName() + " resolves outside of " + destPath);
+                        }
+                        Path stagedPath = blobStore.createStagingFile();
+                        stagedEntries.add(new ArchiveEntry(relativeNodePath, stagedPath, null));
+                        String sha = FileTools.copyWithGitBlobSha(zipIn, entry.getSize(), stagedPath);
+                        stagedEntries.set(stagedEntries.size() - 1, new ArchiveEntry(relativeNodePath, stagedPath, sha));
+                    }
+                }
+                return null;
+            });
+
+            // Each entry goes through the same comparison and blob store as the other fetch modes, so only the files
+            // that changed are written
+            for (ArchiveEntry entry : stagedEntries) {
+                Path relativeNodePath = entry.relativePath();
+                Path stagedPath = entry.stagedPath();
+                String sha = entry.sha();
+                Path filePath = destPath.resolve(relativeNodePath).normalize();
+                Files.createDirectories(filePath.getParent());
 
-                    Path relativeNodePath = path.relativize(nodePath);
-                    downloadFile(downloadUrl, destPath.resolve(relativeNodePath));
+                String fileFrontMatter = FileTools.isIndexFile(relativeNodePath) ? frontMatter : null;
+                String expectedLocalSha = previousManifest.expectedLocalSha(relativeNodePath.toString(), sha, fileFrontMatter);
+                String localSha;
+                try {
+                    localSha = syncFile(filePath, sha, fileFrontMatter, expectedLocalSha, (fetchPath, fetchFrontMatter) -> {
+                        if (fetchFrontMatter == null) {
+                            Files.move(stagedPath, fetchPath, StandardCopyOption.REPLACE_EXISTING);
+                        } else {
+                            try (InputStream content = Files.newInputStream(stagedPath)) {
+                                writeIndexFile(content, fetchPath, fetchFrontMatter);
+                            }
+                        }
+                    }, metrics);
+                } catch (IOException | InterruptedException e) {
+                    throw e;
                 } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    throw new IOException("Failed to sync " + filePath, e);
+                }
+                syncedFiles.put(relativeNodePath.toString(), sha);
+                if (!localSha.equals(sha)) {
+                    localFiles.put(relativeNodePath.toString(), localSha);
                 }
-            }));
+            }
+        } finally {
+            downloadTimer.close();
+            // Entries which were unchanged, or already in the store, are still staged
+            deleteStagedEntries(stagedEntries);
         }
 
-        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        return completeSync(owner, repo, ref, path, destPath, previousManifest,
+            new SyncManifest(path.toString(), frontMatter, new TreeMap<>(syncedFiles), new TreeMap<>(localFiles)), metrics);
     }
-    
-    private String makeApiRequest(String apiUrl) throws IOException, URISyntaxException, InterruptedException {
-        GITHUB_CONCURRENT_REQUEST_AVAILABLE.acquire();
 
-        URL url = new URI(apiUrl).toURL();
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        
-        // Set headers
-        conn.setRequestMethod("GET");
-        conn.setRequestProperty("Accept", "application/vnd.github.v3+json");
+    /**
+     * An entry from the docs folder of a zipball, staged in the blob store until it's synced.
+     */
+    private record ArchiveEntry(Path relativePath, Path stagedPath, String sha) {
+    }
+
+    private static void deleteStagedEntries(List<ArchiveEntry> stagedEntries) throws IOException {
+        for (ArchiveEntry entry : stagedEntries) {
+            Files.deleteIfExists(entry.stagedPath());
+        }
+        stagedEntries.clear();
+    }
+
+    /**
+     * Syncs the contents of {@code path} at {@code ref} into {@code destPath} from a bare mirror of the repository kept
+     * in the cache directory. The mirror is brought up to date by a single incremental fetch the first time the
+     * repository is used in a run, so the development branch and every tag are covered by one round trip, and the
+     * docs folder is then read straight from the mirror's object database without a checkout. As in
+     * {@link #downloadFolder} only files whose blob SHA differs from the local copy are written. Index files have
+     * {@code frontMatter} injected as they are written, unless they already start with their own. Timings and counts
+     * for the sync are recorded in {@code metrics}.
+     *
+     * @return The files which were added, modified or removed by the sync
+     */
+    public SyncManifest.Changes downloadFolderFromMirror(String owner, String repo, String ref, Path path, Path destPath, String frontMatter,
+                                                         BuildMetrics.ScopeMetrics metrics) throws IOException, InterruptedException {
+        LOGGER.debug(
+            String.format("Reading %s/%s/%s at ref %s from the git mirror into %s",
+                          owner, repo, path, ref, destPath));
+
+        Path mirrorDir;
+        List<GitMirrors.TreeEntry> treeEntries;
+        BuildMetrics.Timer treeTimer = metrics.time(BuildMetrics.PHASE_TREE_FETCH);
+        try {
+            mirrorDir = gitMirrors.update(owner, repo);
+            treeEntries = gitMirrors.listTree(mirrorDir, ref, path);
+        } finally {
+            treeTimer.close();
+        }
+
+        SyncManifest previousManifest = SyncManifest.load(mapper, manifestPath(cacheDir, owner, repo, ref), path);
+        Map<String, String> syncedFiles = new HashMap<>();
+        Map<String, String> localFiles = new HashMap<>();
+
+        // The blobs are all local, so they are read one after another through a single 'git cat-file' process
+        // rather than in parallel
+        BuildMetrics.Timer downloadTimer = metrics.time(BuildMetrics.PHASE_FILE_DOWNLOADS);
+        try (GitMirrors.BlobReader blobReader = gitMirrors.openBlobReader(mirrorDir)) {
+            for (GitMirrors.TreeEntry treeEntry : treeEntries) {
+                Path relativeNodePath = path.relativize(treeEntry.path());
+                Path filePath = destPath.resolve(relativeNodePath).normalize();
+                if (!filePath.startsWith(destPath.normalize())) {
+                    throw new IOException("Tree entry " + treeEntry.path() + " resolves outside of " + destPath);
+                }
+                Files.createDirectories(filePath.getParent());
+
+                String fileFrontMatter = FileTools.isIndexFile(relativeNodePath) ? frontMatter : null;
+                String expectedLocalSha = previousManifest.expectedLocalSha(relativeNodePath.toString(), treeEntry.sha(), fileFrontMatter);
+                String localSha = syncFile(filePath, treeEntry.sha(), fileFrontMatter, expectedLocalSha,
+                    (fetchPath, fetchFrontMatter) -> {
+                        try (InputStream blob = blobReader.open(treeEntry.sha())) {
+                            writeIndexFile(blob, fetchPath, fetchFrontMatter);
+                        }
+                    }, metrics);
+                syncedFiles.put(relativeNodePath.toString(), treeEntry.sha());
+                if (!localSha.equals(treeEntry.sha())) {
+                    localFiles.put(relativeNodePath.toString(), localSha);
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to read " + owner + "/" + repo + " " + ref + " from the git mirror", e);
+        } finally {
+            downloadTimer.close();
+        }
+
+        return completeSync(owner, repo, ref, path, destPath, previousManifest,
+            new SyncManifest(path.toString(), frontMatter, new TreeMap<>(syncedFiles), new TreeMap<>(localFiles)), metrics);
+    }
+
+    /**
+     * Fetches the contents of a file into the given path, injecting {@code frontMatter} ahead of it if it isn't null.
+     */
+    @FunctionalInterface
+    private interface FileFetcher {
+        void fetch(Path path, String frontMatter) throws Exception;
+    }
+
+    /**
+     * Brings {@code filePath} up to date with the blob {@code sha}, unless its contents already match
+     * {@code expectedLocalSha}.
+     *
+     * @return The git blob SHA of the file as written locally, which differs from {@code sha} for index files with
+     *         injected front matter and for optimized images
+     */
+    private String syncFile(Path filePath, String sha, String fileFrontMatter, String expectedLocalSha,
+                            FileFetcher fetcher, BuildMetrics.ScopeMetrics metrics) throws Exception {
+        boolean image = fileFrontMatter == null && ImageOptimizer.isImage(filePath);
+        if (image && imageOptimizer != null) {
+            return syncImage(filePath, sha, fetcher, metrics);
+        }
+        // Images optimized by an earlier sync are put back as they are upstream, without their variants
+        String localSha = image ? sha : expectedLocalSha;
+        if (Files.isRegularFile(filePath) && localSha.equals(FileTools.gitBlobSha(filePath))) {
+            LOGGER.debug("Skipping unchanged file " + filePath);
+            metrics.count(BuildMetrics.FILES_UNCHANGED, 1);
+            return localSha;
+        } else if (fileFrontMatter != null) {
+            // Index files are unique to each ref once their front matter is added, so they are streamed
+            // straight into place rather than going through the blob store
+            fetcher.fetch(filePath, fileFrontMatter);
+            metrics.count(BuildMetrics.FILES_DOWNLOADED, 1);
+            metrics.count(BuildMetrics.BYTES_DOWNLOADED, Files.size(filePath));
+            return FileTools.gitBlobSha(filePath);
+        } else {
+            if (image) {
+                ImageOptimizer.removeVariants(filePath);
+            }
+            BlobStore.link(fetchBlob(sha, fetcher, metrics), filePath);
+            metrics.count(BuildMetrics.FILES_LINKED, 1);
+            return sha;
+        }
+    }
+
+    /**
+     * Syncs an image as its optimized form, along with its downscaled variants. The image is only fetched if it
+     * hasn't been optimized before.
+     *
+     * @return The git blob SHA of the optimized image
+     */
+    private String syncImage(Path filePath, String sha, FileFetcher fetcher, BuildMetrics.ScopeMetrics metrics) throws Exception {
+        ImageOptimizer.OptimizedImage image = imageOptimizer.optimize(sha, ImageOptimizer.extension(filePath),
+            () -> fetchBlob(sha, fetcher, metrics));
+        if (imageOptimizer.install(sha, image, filePath)) {
+            metrics.count(BuildMetrics.FILES_LINKED, 1);
+        } else {
+            metrics.count(BuildMetrics.FILES_UNCHANGED, 1);
+        }
+        return image.sha();
+    }
+
+    private Path fetchBlob(String sha, FileFetcher fetcher, BuildMetrics.ScopeMetrics metrics) throws IOException, InterruptedException {
+        return blobStore.get(sha, fetchPath -> {
+            fetcher.fetch(fetchPath, null);
+            metrics.count(BuildMetrics.FILES_DOWNLOADED, 1);
+            metrics.count(BuildMetrics.BYTES_DOWNLOADED, Files.size(fetchPath));
+        });
+    }
+
+    /**
+     * Removes the files we synced last time which have since been removed upstream, then records the files from
+     * this sync in the manifest for next time.
+     *
+     * @return The files which differ between the previous sync and this one
+     */
+    private SyncManifest.Changes completeSync(String owner, String repo, String ref, Path path, Path destPath,
+                              SyncManifest previousManifest, SyncManifest manifest,
+                              BuildMetrics.ScopeMetrics metrics) throws IOException {
+        BuildMetrics.Timer cleanupTimer = metrics.time(BuildMetrics.PHASE_CLEANUP);
+        try {
+            for (String removedFile : previousManifest.files().keySet()) {
+                if (!manifest.files().containsKey(removedFile)) {
+                    LOGGER.info("Removing " + removedFile + " from " + destPath + " as it is no longer in " + owner + "/" + repo + " " + ref);
+                    if (imageOptimizer != null) {
+                        ImageOptimizer.removeVariants(destPath.resolve(removedFile));
+                    }
+                    FileTools.deleteFileAndEmptyParents(destPath.resolve(removedFile), destPath);
+                    metrics.count(BuildMetrics.FILES_REMOVED, 1);
+                }
+            }
+        } finally {
+            cleanupTimer.close();
+        }
+
+        manifest.save(mapper, manifestPath(cacheDir, owner, repo, ref));
+        return manifest.changesSince(previousManifest);
+    }
+
+    private static void writeIndexFile(InputStream content, Path filePath, String frontMatter) throws IOException {
+        if (frontMatter == null) {
+            Files.copy(content, filePath, StandardCopyOption.REPLACE_EXISTING);
+        } else if (!FileTools.writeWithFrontMatter(content, filePath, frontMatter)) {
+            LOGGER.info("Index file " + filePath + " already has hugo front matter, so will be skipped.");
+        }
+    }
+
+    /**
+     * @return The path of the sync manifest of a ref under the cache directory {@code cacheDir}
+     */
+    static Path manifestPath(Path cacheDir, String owner, String repo, String ref) {
+        // Refs can contain slashes (e.g. feature/foo), so encode them to keep one manifest file per ref
+        String refFileName = URLEncoder.encode(ref, StandardCharsets.UTF_8) + ".json";
+        return cacheDir.resolve("manifests").resolve(owner).resolve(repo).resolve(refFileName);
+    }
+    
+    private HttpRequest.Builder newRequest(String url) throws URISyntaxException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(new URI(url)).GET();
         if (accessToken != null && !accessToken.isEmpty()) {
-            conn.setRequestProperty("Authorization", "token " + accessToken);
+            builder.header("Authorization", "token " + accessToken);
+        }
+        return builder;
+    }
+
+    /**
+     * @throws FileNotFoundException If the server responded with a 404, e.g. because the ref doesn't exist
+     * @throws IOException If the server responded with any other error status
+     */
+    private static void checkStatus(HttpRequest request, HttpResponse<?> response) throws IOException {
+        int statusCode = response.statusCode();
+        if (statusCode >= 400) {
+            if (statusCode == 404) {
+                throw new FileNotFoundException(request.uri().toString());
+            }
+            throw new IOException("Server returned HTTP response code: " + statusCode + " for URL: " + request.uri());
+        }
+    }
+
+    /**
+     * Fetches a URL through the response cache. If there is a cached copy it is revalidated with a conditional
+     * request, and a 304 Not Modified response is read from the cache without transferring the body again.
+     * Otherwise the body is passed to {@code reader} while it is still being received, and is only stored in the cache
+     * once it has been read in full.
+     *
+     * @return The result of the reader
+     */
+    private <T> T fetchCached(HttpRequest.Builder requestBuilder, String url,
+                              HttpResponseCache.BodyReader<T> reader) throws IOException, InterruptedException {
+        HttpResponseCache.CachedResponse cached = responseCache.lookup(url);
+        if (cached != null) {
+            if (cached.etag() != null) {
+                requestBuilder.header("If-None-Match", cached.etag());
+            } else if (cached.lastModified() != null) {
+                requestBuilder.header("If-Modified-Since", cached.lastModified());
+            }
+        }
+
+        HttpRequest request = requestBuilder.build();
+        return scheduler.send(httpClient, request, response -> {
+            if (response.statusCode() == 304 && cached != null) {
+                LOGGER.debug("Using cached response for " + url + " as it has not been modified");
+                try (InputStream cachedBody = Files.newInputStream(responseCache.revalidated(url))) {
+                    return reader.read(cachedBody);
+                }
+            }
+
+            checkStatus(request, response);
+            return responseCache.store(
+                url,
+                response.body(),
+                response.headers().firstValue("ETag").orElse(null),
+                response.headers().firstValue("Last-Modified").orElse(null),
+                reader);
+        });
+    }
+
+    private <T> T makeApiRequest(String apiUrl, HttpResponseCache.BodyReader<T> reader) throws IOException, URISyntaxException, InterruptedException {
+        HttpRequest.Builder requestBuilder = newRequest(apiUrl)
+            .header("Accept", "application/vnd.github.v3+json");
+
+        return fetchCached(requestBuilder, apiUrl, reader);
+    }
+    
+    /**
+     * Downloads a file, injecting {@code frontMatter} ahead of the response body as it is written if it isn't null.
+     */
+    private void downloadFile(String downloadUrl, Path destPath, String frontMatter) throws IOException, URISyntaxException, InterruptedException {
+        HttpRequest request = newRequest(downloadUrl).build();
+        scheduler.send(httpClient, request, response -> {
+            checkStatus(request, response);
+            writeIndexFile(response.body(), destPath, frontMatter);
+            return null;
+        });
+    }
+    
+    // Records to represent GitHub tree
+    public record GitHubTreeNode(Path path, String mode, String type, String sha, int size, String url) {}
+}
+
+/**
+ * Bare mirrors of source repositories, kept in the cache directory between runs. A mirror only holds the branches and
+ * tags of its repository, and is brought up to date with a single incremental fetch the first time it is used in a
+ * run, which covers the development branch and every tag at once. Files are read straight out of the mirror's object
+ * database, so refs are never checked out. This needs the {@code git} CLI on the path.
+ */
+class GitMirrors {
+
+    static final Logger LOGGER = Logger.getLogger(GitMirrors.class);
+
+    static final String GITHUB_GIT_BASE = "https://github.com";
+
+    /**
+     * An entry from a tree listing of a ref.
+     *
+     * @param path The path from the repository root
+     */
+    record TreeEntry(String mode, String type, String sha, Path path) {}
+
+    private final String accessToken;
+    private final String gitBaseUrl;
+    private final Path mirrorsDir;
+    // The mirrors fetched in this run, completed once each one is up to date
+    private final Map<String, CompletableFuture<Path>> mirrors = new ConcurrentHashMap<>();
+
+    /**
+     * @param accessToken The GitHub access token sent with fetches over HTTPS
+     * @param gitBaseUrl The base URL that {@code <owner>/<repo>.git} is cloned from, normally {@link #GITHUB_GIT_BASE}.
+     *                   This can also be a {@code file://} URL of a local folder of repositories.
+     * @param mirrorsDir The directory the mirrors are kept in
+     */
+    GitMirrors(String accessToken, String gitBaseUrl, Path mirrorsDir) {
+        this.accessToken = accessToken;
+        this.gitBaseUrl = gitBaseUrl;
+        this.mirrorsDir = mirrorsDir;
+    }
+
+    /**
+     * Returns the path of the mirror of {@code owner/repo}, creating it or fetching into it first if that hasn't
+     * already been done in this run. Concurrent requests for the same repository wait for a single fetch.
+     */
+    Path update(String owner, String repo) throws IOException, InterruptedException {
+        String key = owner + "/" + repo;
+        CompletableFuture<Path> mirrorFuture = new CompletableFuture<>();
+        CompletableFuture<Path> existingFuture = mirrors.putIfAbsent(key, mirrorFuture);
+        if (existingFuture != null) {
+            try {
+                return existingFuture.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to fetch the git mirror of " + key, e.getCause());
+            }
+        }
+
+        try {
+            Path mirrorDir = fetchMirror(owner, repo);
+            mirrorFuture.complete(mirrorDir);
+            return mirrorDir;
+        } catch (IOException | InterruptedException e) {
+            // Let a later ref of this repository try again
+            mirrors.remove(key, mirrorFuture);
+            mirrorFuture.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private Path fetchMirror(String owner, String repo) throws IOException, InterruptedException {
+        Path mirrorDir = mirrorsDir.resolve(owner).resolve(repo + ".git");
+        String remoteUrl = String.format("%s/%s/%s.git", gitBaseUrl, owner, repo);
+
+        if (!Files.exists(mirrorDir.resolve("config"))) {
+            LOGGER.info("Creating a git mirror of " + remoteUrl + " in " + mirrorDir);
+            // The mirror is set up next to its final location and moved into place, so an interrupted run doesn't
+            // leave a half configured mirror behind
+            Path tempDir = mirrorDir.resolveSibling(repo + ".git.tmp");
+            org.apache.commons.io.FileUtils.deleteDirectory(tempDir.toFile());
+            Files.createDirectories(tempDir);
+            git(tempDir, "init", "--bare", "--quiet");
+            git(tempDir, "remote", "add", "origin", remoteUrl);
+            // Only branches and tags, unlike 'git clone --mirror', which would also fetch every pull request ref
+            git(tempDir, "config", "remote.origin.fetch", "+refs/heads/*:refs/heads/*");
+            git(tempDir, "config", "--add", "remote.origin.fetch", "+refs/tags/*:refs/tags/*");
+            Files.move(tempDir, mirrorDir, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            git(mirrorDir, "remote", "set-url", "origin", remoteUrl);
+        }
+
+        LOGGER.info("Fetching " + remoteUrl + " into " + mirrorDir);
+        git(mirrorDir, "fetch", "--prune", "--quiet", "origin");
+        return mirrorDir;
+    }
+
+    /**
+     * Lists the files under {@code path} at {@code ref}, recursing into subfolders. Submodules are left out, as their
+     * contents aren't in the mirror.
+     *
+     * @throws FileNotFoundException If the ref isn't in the mirror
+     */
+    List<TreeEntry> listTree(Path mirrorDir, String ref, Path path) throws IOException, InterruptedException {
+        String treeSha;
+        try {
+            treeSha = git(mirrorDir, "rev-parse", "--verify", "--quiet", ref + "^{tree}").trim();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Ref " + ref + " was not found in " + mirrorDir);
+        }
+
+        List<TreeEntry> entries = new ArrayList<>();
+        // -z separates entries with NUL and leaves paths unquoted
+        String listing = git(mirrorDir, "ls-tree", "-r", "-z", "--full-tree", treeSha, "--", path.toString());
+        for (String line : listing.split("\0")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            // <mode> SP <type> SP <sha> TAB <path>
+            int tab = line.indexOf('\t');
+            String[] fields = line.substring(0, tab).split(" ");
+            if (fields[1].equals("blob")) {
+                entries.add(new TreeEntry(fields[0], fields[1], fields[2], Paths.get(line.substring(tab + 1))));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Starts a reader for blobs from the mirror. The reader must be closed once it is no longer needed.
+     */
+    BlobReader openBlobReader(Path mirrorDir) throws IOException {
+        ProcessBuilder processBuilder = new ProcessBuilder("git", "-C", mirrorDir.toString(), "cat-file", "--batch")
+            .redirectError(ProcessBuilder.Redirect.INHERIT);
+        configureEnvironment(processBuilder);
+        return new BlobReader(processBuilder.start());
+    }
+
+    /**
+     * Reads blobs one at a time through a long running {@code git cat-file --batch} process, rather than starting a
+     * process per file.
+     */
+    static class BlobReader implements AutoCloseable {
+
+        private final Process process;
+        private final InputStream in;
+        private final OutputStream out;
+        // The contents of the blob that was last opened, which have to be read to the end before the next one
+        private InputStream current;
+
+        private BlobReader(Process process) {
+            this.process = process;
+            this.in = new BufferedInputStream(process.getInputStream());
+            this.out = process.getOutputStream();
+        }
+
+        /**
+         * Returns the contents of the blob {@code sha}. The stream is only valid until the next blob is opened.
+         *
+         * @throws FileNotFoundException If the blob isn't in the mirror
+         */
+        InputStream open(String sha) throws IOException {
+            skipCurrent();
+            out.write((sha + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            // The contents are preceded by a '<sha> blob <size>' header, or '<sha> missing'
+            String header = readLine();
+            String[] fields = header.split(" ");
+            if (fields.length != 3 || !fields[1].equals("blob")) {
+                throw new FileNotFoundException("Blob " + sha + " could not be read from the git mirror: " + header);
+            }
+            current = org.apache.commons.io.input.BoundedInputStream.builder()
+                .setInputStream(in)
+                .setMaxCount(Long.parseLong(fields[2]))
+                .setPropagateClose(false)
+                .get();
+            return current;
+        }
+
+        private void skipCurrent() throws IOException {
+            if (current != null) {
+                current.transferTo(OutputStream.nullOutputStream());
+                // Each blob's contents are followed by a newline
+                in.read();
+                current = null;
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c == -1) {
+                    throw new IOException("git cat-file exited unexpectedly");
+                }
+                line.append((char) c);
+            }
+            return line.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+            try {
+                if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                    process.destroy();
+                }
+            } catch (InterruptedException e) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Runs a git command in {@code dir}.
+     *
+     * @return The standard output of the command
+     * @throws IOException If git exits with an error, including its error output in the message
+     */
+    private String git(Path dir, String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of("git", "-C", dir.toString()));
+        command.addAll(Arrays.asList(args));
+
+        Path errorLog = Files.createTempFile("git", ".log");
+        try {
+            ProcessBuilder processBuilder = new ProcessBuilder(command).redirectError(errorLog.toFile());
+            configureEnvironment(processBuilder);
+            Process process = processBuilder.start();
+            process.getOutputStream().close();
+            String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                throw new IOException(String.join(" ", command) + " failed with exit code " + exitCode + ": "
+                    + Files.readString(errorLog).trim());
+            }
+            return output;
+        } finally {
+            Files.deleteIfExists(errorLog);
+        }
+    }
+
+    private void configureEnvironment(ProcessBuilder processBuilder) {
+        Map<String, String> environment = processBuilder.environment();
+        // Fail rather than wait for credentials that will never be typed in
+        environment.put("GIT_TERMINAL_PROMPT", "0");
+        if (accessToken != null && !accessToken.isEmpty()) {
+            // Passed through the environment rather than the remote URL or command line, so the token isn't written
+            // to the mirror's config or visible in the process list
+            String credentials = Base64.getEncoder()
+                .encodeToString(("x-access-token:" + accessToken).getBytes(StandardCharsets.UTF_8));
+            environment.put("GIT_CONFIG_COUNT", "1");
+            environment.put("GIT_CONFIG_KEY_0", "http.extraHeader");
+            environment.put("GIT_CONFIG_VALUE_0", "Authorization: Basic " + credentials);
+        }
+    }
+}
+
+/**
+ * Timings and counters collected over a docBuilder run. Phase timings and file counts are kept for each source and
+ * ref, and request latencies, time spent waiting on the request scheduler, retries and bytes transferred for the run
+ * as a whole. They are written out as a JSON report at the end of the run and can also be logged as a summary table.
+ * <p>
+ * The report of the first sync in a JVM also records the time from the JVM starting to the first request being sent,
+ * which tracks how much of the run goes on startup rather than on GitHub.
+ */
+class BuildMetrics {
+
+    static final Logger LOGGER = Logger.getLogger(BuildMetrics.class);
+
+    static final String PHASE_TREE_FETCH = "treeFetch";
+    static final String PHASE_FILE_DOWNLOADS = "fileDownloads";
+    static final String PHASE_HEADER_INJECTION = "headerInjection";
+    static final String PHASE_CONTENTS_PAGE = "contentsPage";
+    static final String PHASE_CLEANUP = "cleanup";
+
+    static final String FILES_DOWNLOADED = "filesDownloaded";
+    static final String FILES_LINKED = "filesLinked";
+    static final String FILES_UNCHANGED = "filesUnchanged";
+    static final String FILES_REMOVED = "filesRemoved";
+    static final String BYTES_DOWNLOADED = "bytesDownloaded";
+
+    // Only the first request sent by the JVM is timed, so later syncs in watch mode don't report the whole uptime
+    private static final Instant JVM_STARTED_AT = ProcessHandle.current().info().startInstant().orElseGet(Instant::now);
+    private static final AtomicBoolean FIRST_REQUEST_SENT = new AtomicBoolean();
+
+    private final Instant startedAt = Instant.now();
+    private final long startNanos = System.nanoTime();
+    private volatile Long timeToFirstRequestMillis;
+    private final Map<List<String>, ScopeMetrics> scopes = new ConcurrentHashMap<>();
+    private final List<Long> requestLatencyNanos = Collections.synchronizedList(new ArrayList<>());
+    private final List<Long> schedulerWaitNanos = Collections.synchronizedList(new ArrayList<>());
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder throttledResponses = new LongAdder();
+    private final LongAdder bytesTransferred = new LongAdder();
+
+    /**
+     * Stops timing a phase when closed, adding the elapsed time to the phase's total.
+     */
+    interface Timer extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    /**
+     * The phase timings and counters for a single source, or a single ref of a source.
+     */
+    static class ScopeMetrics {
+        private final String source;
+        private final String ref;
+        private final Map<String, LongAdder> phaseNanos = new ConcurrentHashMap<>();
+        private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+        private ScopeMetrics(String source, String ref) {
+            this.source = source;
+            this.ref = ref;
+        }
+
+        Timer time(String phase) {
+            long startNanos = System.nanoTime();
+            return () -> phaseNanos.computeIfAbsent(phase, key -> new LongAdder()).add(System.nanoTime() - startNanos);
+        }
+
+        void count(String counter, long amount) {
+            counters.computeIfAbsent(counter, key -> new LongAdder()).add(amount);
+        }
+
+        long counter(String counter) {
+            LongAdder adder = counters.get(counter);
+            return adder != null ? adder.sum() : 0;
+        }
+
+        private ScopeReport report() {
+            return new ScopeReport(source, ref, toMillis(phaseNanos), sums(counters));
+        }
+    }
+
+    /**
+     * @param source The name of the source
+     * @param ref The ref, or null for phases which apply to the source as a whole
+     * @param phaseMillis Total time spent in each phase
+     * @param counters Total of each counter
+     */
+    record ScopeReport(String source, String ref, Map<String, Long> phaseMillis, Map<String, Long> counters) {}
+
+    record Percentiles(long p50, long p95, long p99, long max) {}
+
+    record RequestReport(long count, long retries, long throttled, long bytesTransferred, int finalConcurrencyLimit,
+                         Percentiles latencyMillis, long schedulerWaitMillis, Percentiles schedulerWaitPerRequestMillis) {}
+
+    /**
+     * @param timeToFirstRequestMillis Time from the JVM starting to the first request being sent, or null if this
+     *                                 wasn't the sync which sent it
+     */
+    record Report(Instant startedAt, long durationMillis, Long timeToFirstRequestMillis, RequestReport requests, List<ScopeReport> scopes) {}
+
+    ScopeMetrics forSource(String source) {
+        return forRef(source, null);
+    }
+
+    ScopeMetrics forRef(String source, String ref) {
+        return scopes.computeIfAbsent(Arrays.asList(source, ref), key -> new ScopeMetrics(source, ref));
+    }
+
+    void recordRequestSent() {
+        if (!FIRST_REQUEST_SENT.getAndSet(true)) {
+            timeToFirstRequestMillis = Duration.between(JVM_STARTED_AT, Instant.now()).toMillis();
+        }
+    }
+
+    void recordRequest(long latencyNanos) {
+        requestLatencyNanos.add(latencyNanos);
+    }
+
+    void recordSchedulerWait(long waitNanos) {
+        schedulerWaitNanos.add(waitNanos);
+    }
+
+    void recordRetry() {
+        retries.increment();
+    }
+
+    void recordThrottled() {
+        throttledResponses.increment();
+    }
+
+    /**
+     * Wraps a response body so the bytes read from it are counted towards the bytes transferred.
+     */
+    InputStream countingBytes(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int read = super.read();
+                if (read != -1) {
+                    bytesTransferred.increment();
+                }
+                return read;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    bytesTransferred.add(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    Report report(int finalConcurrencyLimit) {
+        List<Long> latencies;
+        synchronized (requestLatencyNanos) {
+            latencies = new ArrayList<>(requestLatencyNanos);
+        }
+        List<Long> waits;
+        synchronized (schedulerWaitNanos) {
+            waits = new ArrayList<>(schedulerWaitNanos);
+        }
+
+        RequestReport requests = new RequestReport(
+            latencies.size(),
+            retries.sum(),
+            throttledResponses.sum(),
+            bytesTransferred.sum(),
+            finalConcurrencyLimit,
+            percentiles(latencies),
+            waits.stream().mapToLong(Long::longValue).sum() / 1_000_000,
+            percentiles(waits));
+
+        List<ScopeReport> scopeReports = scopes.values().stream()
+            .map(ScopeMetrics::report)
+            .sorted(Comparator.comparing(ScopeReport::source).thenComparing(ScopeReport::ref, Comparator.nullsFirst(Comparator.naturalOrder())))
+            .toList();
+
+        return new Report(startedAt, (System.nanoTime() - startNanos) / 1_000_000, timeToFirstRequestMillis, requests, scopeReports);
+    }
+
+    void writeReport(Report report, Path reportPath) throws IOException {
+        ObjectMapper mapper = JsonMapper.builder()
+            .addModule(new SimpleModule().addSerializer(Instant.class, new ToStringSerializer()))
+            .build();
+        Files.createDirectories(reportPath.toAbsolutePath().getParent());
+        mapper.writerWithDefaultPrettyPrinter().writeValue(reportPath.toFile(), report);
+        LOGGER.info("Wrote build report to " + reportPath);
+    }
+
+    void logSummary(Report report) {
+        StringBuilder summary = new StringBuilder();
+        String rowFormat = "%n%-30s %-12s %10s %10s %10s %11s %8s %8s %8s %8s %12s";
+        summary.append(String.format(rowFormat, "Source", "Ref", "Tree ms", "Files ms", "Header ms", "Contents ms",
+            "Fetched", "Linked", "Same", "Removed", "Bytes"));
+        for (ScopeReport scope : report.scopes()) {
+            summary.append(String.format(rowFormat,
+                scope.source(),
+                scope.ref() != null ? scope.ref() : "-",
+                scope.phaseMillis().getOrDefault(PHASE_TREE_FETCH, 0L),
+                scope.phaseMillis().getOrDefault(PHASE_FILE_DOWNLOADS, 0L),
+                scope.phaseMillis().getOrDefault(PHASE_HEADER_INJECTION, 0L),
+                scope.phaseMillis().getOrDefault(PHASE_CONTENTS_PAGE, 0L),
+                scope.counters().getOrDefault(FILES_DOWNLOADED, 0L),
+                scope.counters().getOrDefault(FILES_LINKED, 0L),
+                scope.counters().getOrDefault(FILES_UNCHANGED, 0L),
+                scope.counters().getOrDefault(FILES_REMOVED, 0L),
+                scope.counters().getOrDefault(BYTES_DOWNLOADED, 0L)));
+        }
+
+        RequestReport requests = report.requests();
+        summary.append(String.format("%n%nRequests: %d (%d retries, %d throttled), %d bytes transferred, final concurrency limit %d",
+            requests.count(), requests.retries(), requests.throttled(), requests.bytesTransferred(), requests.finalConcurrencyLimit()));
+        summary.append(String.format("%nRequest latency ms: p50 %d, p95 %d, p99 %d, max %d",
+            requests.latencyMillis().p50(), requests.latencyMillis().p95(), requests.latencyMillis().p99(), requests.latencyMillis().max()));
+        summary.append(String.format("%nScheduler wait ms: total %d, p50 %d, p95 %d, p99 %d",
+            requests.schedulerWaitMillis(), requests.schedulerWaitPerRequestMillis().p50(),
+            requests.schedulerWaitPerRequestMillis().p95(), requests.schedulerWaitPerRequestMillis().p99()));
+        if (report.timeToFirstRequestMillis() != null) {
+            summary.append(String.format("%nTime from JVM start to first request: %d ms", report.timeToFirstRequestMillis()));
+        }
+        summary.append(String.format("%nTotal run time: %d ms", report.durationMillis()));
+
+        LOGGER.info("Build summary:" + summary);
+    }
+
+    private static Percentiles percentiles(List<Long> nanos) {
+        if (nanos.isEmpty()) {
+            return new Percentiles(0, 0, 0, 0);
+        }
+        long[] sorted = nanos.stream().mapToLong(Long::longValue).sorted().toArray();
+        return new Percentiles(
+            percentile(sorted, 50) / 1_000_000,
+            percentile(sorted, 95) / 1_000_000,
+            percentile(sorted, 99) / 1_000_000,
+            sorted[sorted.length - 1] / 1_000_000);
+    }
+
+    // Nearest-rank percentile
+    private static long percentile(long[] sorted, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(rank - 1, 0)];
+    }
+
+    private static Map<String, Long> toMillis(Map<String, LongAdder> nanos) {
+        Map<String, Long> millis = new TreeMap<>();
+        nanos.forEach((key, value) -> millis.put(key, value.sum() / 1_000_000));
+        return millis;
+    }
+
+    private static Map<String, Long> sums(Map<String, LongAdder> adders) {
+        Map<String, Long> sums = new TreeMap<>();
+        adders.forEach((key, value) -> sums.put(key, value.sum()));
+        return sums;
+    }
+}
+
+/**
+ * Schedules requests to GitHub, adapting how many are in flight at once to how GitHub is responding.
+ * <p>
+ * The concurrency limit grows while requests succeed (doubling at first, then additively) and is halved whenever
+ * GitHub throttles us, and trimmed when responses slow down noticeably. Rate limit headers pause all requests until
+ * the limit resets. Throttled requests, server errors and requests that fail to connect or whose body can't be read
+ * are retried with jittered exponential backoff, but only throttling lowers the limit, as a server error says nothing
+ * about how hard we are pushing. The capacity a request holds is always returned, whether it succeeds or not.
+ */
+class RequestScheduler {
+
+    static final Logger LOGGER = Logger.getLogger(RequestScheduler.class);
+
+    // https://docs.github.com/en/rest/using-the-rest-api/rate-limits-for-the-rest-api?apiVersion=2022-11-28#about-secondary-rate-limits
+    private static final int GITHUB_CONCURRENT_REQUEST_LIMIT = 100;
+    static final int DEFAULT_MAX_CONCURRENT_REQUESTS = GITHUB_CONCURRENT_REQUEST_LIMIT - 10;
+
+    private static final double INITIAL_CONCURRENT_REQUESTS = 8;
+    private static final long BASE_BACKOFF_MILLIS = 1_000;
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+    // A response this many times slower than the running average is taken as a sign we're pushing too hard
+    private static final double LATENCY_TOLERANCE = 3.0;
+    // Only back off once for a burst of throttled responses to requests that were all in flight together
+    private static final long MIN_DECREASE_INTERVAL_NANOS = 1_000_000_000L;
+
+    /**
+     * Handles a response that has not been throttled. The response body is closed once the handler returns. The
+     * handler may be called again if it fails to read the body, so it should start afresh each time it is called.
+     */
+    @FunctionalInterface
+    interface ResponseHandler<T> {
+        T handle(HttpResponse<InputStream> response) throws IOException;
+    }
+
+    private final int maxConcurrentRequests;
+    private final int maxRetries;
+    private volatile BuildMetrics metrics;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition capacityChanged = lock.newCondition();
+    private double concurrencyLimit;
+    private boolean slowStart = true;
+    private int inFlight;
+    private long pausedUntilMillis;
+    private long lastDecreaseNanos;
+    private double averageLatencyMillis = -1;
+
+    /**
+     * @param maxConcurrentRequests The most requests that will ever be in flight at once
+     * @param maxRetries How many times a throttled or failed request is retried before giving up
+     * @param metrics Where request latencies, waits, retries and bytes transferred are recorded
+     */
+    RequestScheduler(int maxConcurrentRequests, int maxRetries, BuildMetrics metrics) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.maxRetries = maxRetries;
+        this.metrics = metrics;
+        this.concurrencyLimit = Math.min(INITIAL_CONCURRENT_REQUESTS, maxConcurrentRequests);
+    }
+
+    /**
+     * Sends the request once there is capacity for it, retrying it if it is throttled or fails, then passes the
+     * response to the handler while still holding the capacity, so the body transfer is counted too. Handlers should
+     * only read the body, leaving any CPU heavy work on what they read until after this returns.
+     */
+    <T> T send(HttpClient client, HttpRequest request, ResponseHandler<T> handler) throws IOException, InterruptedException {
+        long retryDelayMillis = 0;
+        for (int attempt = 0; ; attempt++) {
+            if (retryDelayMillis > 0) {
+                metrics.recordRetry();
+                Thread.sleep(retryDelayMillis);
+            }
+
+            long waitStartNanos = System.nanoTime();
+            acquire();
+            metrics.recordSchedulerWait(System.nanoTime() - waitStartNanos);
+            try {
+                metrics.recordRequestSent();
+                long startNanos = System.nanoTime();
+                HttpResponse<InputStream> response;
+                try {
+                    response = client.send(request, responseInfo -> HttpResponse.BodySubscribers.mapping(
+                        HttpResponse.BodySubscribers.ofInputStream(), metrics::countingBytes));
+                } catch (IOException e) {
+                    if (attempt >= maxRetries) {
+                        throw e;
+                    }
+                    retryDelayMillis = backoffMillis(attempt);
+                    LOGGER.warn("Request for " + request.uri() + " failed (" + e + "), retrying in " + retryDelayMillis + "ms");
+                    continue;
+                }
+                long latencyNanos = System.nanoTime() - startNanos;
+                long latencyMillis = latencyNanos / 1_000_000;
+                metrics.recordRequest(latencyNanos);
+
+                observeRateLimit(response);
+                if (isThrottled(response) || isServerError(response)) {
+                    response.body().close();
+                    if (isThrottled(response)) {
+                        onThrottled();
+                        metrics.recordThrottled();
+                    }
+                    if (attempt >= maxRetries) {
+                        throw new IOException("Giving up on " + request.uri() + " after " + (attempt + 1)
+                            + " attempts, last response code: " + response.statusCode());
+                    }
+                    retryDelayMillis = Math.max(backoffMillis(attempt), retryAfterMillis(response));
+                    LOGGER.warn("Request for " + request.uri() + " failed with response code " + response.statusCode()
+                        + ", retrying in " + retryDelayMillis + "ms");
+                    continue;
+                }
+
+                onSuccess(latencyMillis);
+                try {
+                    return handler.handle(response);
+                } catch (IOException e) {
+                    // An error status reported by the handler is final, but a body that couldn't be read in full,
+                    // e.g. because the connection dropped part way through, is worth another try
+                    if (response.statusCode() >= 400 || attempt >= maxRetries) {
+                        throw e;
+                    }
+                    retryDelayMillis = backoffMillis(attempt);
+                    LOGGER.warn("Reading the response to " + request.uri() + " failed (" + e + "), retrying in " + retryDelayMillis + "ms");
+                } finally {
+                    response.body().close();
+                }
+            } finally {
+                release();
+            }
+        }
+    }
+
+    /**
+     * Records requests into {@code metrics} from now on, so a scheduler kept across several syncs, with what it has
+     * learnt about how hard it can push GitHub, reports each sync's requests separately.
+     */
+    void recordInto(BuildMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return The current limit on concurrent requests
+     */
+    int concurrencyLimit() {
+        lock.lock();
+        try {
+            return (int) concurrencyLimit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                long pausedMillis = pausedUntilMillis - System.currentTimeMillis();
+                if (pausedMillis > 0) {
+                    capacityChanged.await(pausedMillis, TimeUnit.MILLISECONDS);
+                } else if (inFlight >= (int) concurrencyLimit) {
+                    capacityChanged.await();
+                } else {
+                    inFlight++;
+                    return;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            capacityChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onSuccess(long latencyMillis) {
+        lock.lock();
+        try {
+            if (averageLatencyMillis < 0) {
+                averageLatencyMillis = latencyMillis;
+            } else if (latencyMillis > averageLatencyMillis * LATENCY_TOLERANCE) {
+                decrease(0.9);
+            } else if (slowStart) {
+                concurrencyLimit = Math.min(concurrencyLimit + 1, maxConcurrentRequests);
+            } else {
+                concurrencyLimit = Math.min(concurrencyLimit + 1 / concurrencyLimit, maxConcurrentRequests);
+            }
+            averageLatencyMillis = averageLatencyMillis < 0 ? latencyMillis : 0.9 * averageLatencyMillis + 0.1 * latencyMillis;
+            capacityChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onThrottled() {
+        lock.lock();
+        try {
+            decrease(0.5);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void decrease(double factor) {
+        slowStart = false;
+        long now = System.nanoTime();
+        if (now - lastDecreaseNanos < MIN_DECREASE_INTERVAL_NANOS) {
+            return;
+        }
+        lastDecreaseNanos = now;
+        concurrencyLimit = Math.max(1, concurrencyLimit * factor);
+        LOGGER.debug("Reduced concurrent request limit to " + (int) concurrencyLimit);
+    }
+
+    /**
+     * Pauses all requests if this response says we've used up the rate limit, or told us to wait.
+     */
+    private void observeRateLimit(HttpResponse<?> response) {
+        long pauseUntil = 0;
+        if (response.headers().firstValue("X-RateLimit-Remaining").map("0"::equals).orElse(false)) {
+            pauseUntil = response.headers().firstValueAsLong("X-RateLimit-Reset").orElse(0) * 1000;
+        }
+        long retryAfterMillis = retryAfterMillis(response);
+        if (retryAfterMillis > 0) {
+            pauseUntil = Math.max(pauseUntil, System.currentTimeMillis() + retryAfterMillis);
+        }
+
+        if (pauseUntil > System.currentTimeMillis()) {
+            lock.lock();
+            try {
+                if (pauseUntil > pausedUntilMillis) {
+                    LOGGER.warn("GitHub rate limit reached, pausing requests for " + (pauseUntil - System.currentTimeMillis()) + "ms");
+                    pausedUntilMillis = pauseUntil;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // https://docs.github.com/en/rest/using-the-rest-api/best-practices-for-using-the-rest-api?apiVersion=2022-11-28#handle-rate-limit-errors-appropriately
+    private static boolean isThrottled(HttpResponse<?> response) {
+        int statusCode = response.statusCode();
+        if (statusCode == 429) {
+            return true;
+        }
+        return statusCode == 403 && (response.headers().firstValue("Retry-After").isPresent()
+            || response.headers().firstValue("X-RateLimit-Remaining").map("0"::equals).orElse(false));
+    }
+
+    private static boolean isServerError(HttpResponse<?> response) {
+        int statusCode = response.statusCode();
+        return statusCode == 500 || statusCode == 502 || statusCode == 503 || statusCode == 504;
+    }
+
+    private static long retryAfterMillis(HttpResponse<?> response) {
+        return response.headers().firstValueAsLong("Retry-After").orElse(0) * 1000;
+    }
+
+    /**
+     * "Full jitter" exponential backoff, so requests throttled together don't all retry together.
+     */
+    private static long backoffMillis(int attempt) {
+        long maxDelay = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 16));
+        return ThreadLocalRandom.current().nextLong(maxDelay + 1);
+    }
+}
+
+/**
+ * A store of file contents keyed by git blob SHA. Tagged versions of the docs share most of their files, so each
+ * unique blob is downloaded once and every ref which contains it gets a hard link to the stored copy (or a plain copy
+ * where the filesystem can't link). Stored blobs are read-only, as changing one in place would change it for every
+ * ref linked to it.
+ */
+class BlobStore {
+
+    static final Logger LOGGER = Logger.getLogger(BlobStore.class);
+
+    /**
+     * Fetches the contents of a blob into the given path.
+     */
+    @FunctionalInterface
+    interface BlobFetcher {
+        void fetch(Path path) throws Exception;
+    }
+
+    private final Path storeDir;
+    // The blobs used in this run, completed once each one is in the store
+    private final Map<String, CompletableFuture<Path>> blobs = new ConcurrentHashMap<>();
+
+    BlobStore(Path storeDir) {
+        this.storeDir = storeDir;
+    }
+
+    /**
+     * Returns the path of the stored blob, fetching it first if it isn't already in the store. Concurrent requests for
+     * the same blob wait for a single fetch.
+     */
+    Path get(String sha, BlobFetcher fetcher) throws IOException, InterruptedException {
+        CompletableFuture<Path> blobFuture = new CompletableFuture<>();
+        CompletableFuture<Path> existingFuture = blobs.putIfAbsent(sha, blobFuture);
+        if (existingFuture != null) {
+            try {
+                return existingFuture.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to fetch blob " + sha, e.getCause());
+            }
+        }
+
+        try {
+            Path blobPath = storeBlob(sha, fetcher);
+            blobFuture.complete(blobPath);
+            return blobPath;
+        } catch (Exception e) {
+            // Let a later request for this blob try again
+            blobs.remove(sha, blobFuture);
+            blobFuture.completeExceptionally(e);
+            if (e instanceof InterruptedException interruptedException) {
+                throw interruptedException;
+            }
+            throw e instanceof IOException ioException ? ioException : new IOException("Failed to fetch blob " + sha, e);
+        }
+    }
+
+    private Path storeBlob(String sha, BlobFetcher fetcher) throws Exception {
+        Path blobPath = storeDir.resolve(sha.substring(0, 2)).resolve(sha);
+        if (Files.exists(blobPath)) {
+            if (sha.equals(FileTools.gitBlobSha(blobPath))) {
+                return blobPath;
+            }
+            LOGGER.warn("Stored blob " + blobPath + " is corrupt and will be fetched again");
+            Files.delete(blobPath);
+        }
+
+        Files.createDirectories(blobPath.getParent());
+        Path tempPath = Files.createTempFile(blobPath.getParent(), sha, ".tmp");
+        try {
+            fetcher.fetch(tempPath);
+            String fetchedSha = FileTools.gitBlobSha(tempPath);
+            if (!sha.equals(fetchedSha)) {
+                throw new IOException("Fetched content for blob " + sha + " has SHA " + fetchedSha);
+            }
+            tempPath.toFile().setReadOnly();
+            Files.move(tempPath, blobPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+        return blobPath;
+    }
+
+    /**
+     * Creates an empty file in the store for content whose SHA isn't known yet, so a fetcher can later move it into
+     * place rather than copy it. The caller deletes it if it isn't moved, and {@link #prune()} removes any left behind.
+     */
+    Path createStagingFile() throws IOException {
+        Files.createDirectories(storeDir);
+        return Files.createTempFile(storeDir, "staged", ".tmp");
+    }
+
+    /**
+     * Replaces {@code target} with a hard link to the stored blob, falling back to a copy if the filesystem doesn't
+     * support hard links or the store is on a different filesystem.
+     */
+    static void link(Path blobPath, Path target) throws IOException {
+        if (Files.exists(target) && Files.isSameFile(blobPath, target)) {
+            return;
+        }
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, blobPath);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            Files.copy(blobPath, target);
+        }
+    }
+
+    /**
+     * Removes the blobs which nothing links to any more, so the store only grows with the content currently in use.
+     * Whether this run used a blob isn't enough on its own, as refs skipped because they haven't changed, or synced by
+     * another shard or run, still link to theirs. A blob that was copied rather than linked only survives the runs
+     * that use it, and nothing is pruned on a filesystem that can't report link counts.
+     */
+    void prune() throws IOException {
+        if (!Files.exists(storeDir)) {
+            return;
+        }
+        if (!Files.getFileStore(storeDir).supportsFileAttributeView("unix")) {
+            LOGGER.debug("Not pruning " + storeDir + " as its filesystem doesn't report hard link counts");
+            return;
+        }
+
+        List<Path> unusedBlobs;
+        try (var paths = Files.walk(storeDir)) {
+            unusedBlobs = paths
+                .filter(Files::isRegularFile)
+                .filter(path -> !blobs.containsKey(path.getFileName().toString()) && FileTools.linkCount(path) <= 1)
+                .toList();
+        }
+        for (Path unusedBlob : unusedBlobs) {
+            Files.delete(unusedBlob);
+        }
+
+        if (!unusedBlobs.isEmpty()) {
+            LOGGER.info("Pruned " + unusedBlobs.size() + " unused blobs from " + storeDir);
+        }
+    }
+}
+
+/**
+ * Makes the images pulled from source repositories lighter to serve. PNGs are recompressed losslessly, with the
+ * {@code oxipng} command if it's available and otherwise by re-encoding them at the highest compression, keeping
+ * whichever is smaller. JPEGs have their Huffman tables optimized losslessly by the {@code jpegtran} command if it's
+ * available, and are otherwise left as they are. Downscaled variants of each image are written next to it, which the
+ * rendered pages offer to browsers as a {@code srcset}. The results are cached under the git blob SHA of the source
+ * image, so an image shared between tagged versions is only processed once, and a cached image doesn't even need
+ * downloading again.
+ */
+class ImageOptimizer {
+
+    static final Logger LOGGER = Logger.getLogger(ImageOptimizer.class);
+
+    // Recorded in the sync state, so changing how images are processed re-syncs the refs processed the old way
+    static final String VERSION = "3";
+    static final Set<String> IMAGE_EXTENSIONS = Set.of("png", "jpg", "jpeg");
+    // Enough to cover the docs content column on phones, and on desktops at 1x and 2x pixel density
+    static final List<Integer> VARIANT_WIDTHS = List.of(480, 960, 1440);
+    // The docs content column is about 46rem wide, between the menu and the page's table of contents
+    static final String SIZES = "(max-width: 46rem) 100vw, 46rem";
+    // Only used for the downscaled variants, which have to be encoded afresh anyway
+    static final float JPEG_QUALITY = 0.85f;
+
+    private static final Pattern IMG_SRC = Pattern.compile("<img src=\"([^\"]+)\"");
+    // Re-encoding through ImageIO drops these, which would change how the image looks or stop it animating
+    private static final Set<String> UNSUPPORTED_PNG_CHUNKS = Set.of("iCCP", "gAMA", "cHRM", "acTL");
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final int JPEG_START_OF_IMAGE = 0xFFD8;
+    private static final int JPEG_START_OF_SCAN = 0xFFDA;
+    private static final int JPEG_END_OF_IMAGE = 0xFFD9;
+    // jpegtran is run with '-copy none', which drops the APP1 (Exif orientation) and APP2 (ICC profile) segments that
+    // would change how the image looks
+    private static final Set<Integer> UNSUPPORTED_JPEG_SEGMENTS = Set.of(0xFFE1, 0xFFE2);
+
+    /**
+     * Fetches the source image, returning its path.
+     */
+    @FunctionalInterface
+    interface ImageSource {
+        Path fetch() throws Exception;
+    }
+
+    /**
+     * @param sha The git blob SHA of the optimized image
+     * @param width The width of the image in pixels, or 0 if it couldn't be read
+     * @param variantWidths The widths of the downscaled variants, narrowest first
+     */
+    record OptimizedImage(String sha, int width, List<Integer> variantWidths) {}
+
+    private final Path cacheDir;
+    // Images processed by each VERSION are cached apart, so changing how images are processed doesn't reuse old results
+    private final Path versionDir;
+    private final boolean oxipngAvailable;
+    private final boolean jpegtranAvailable;
+    private final ObjectMapper mapper = new ObjectMapper();
+    // Processing images is CPU bound, but downloads run on a virtual thread each, so only one per core runs at once
+    private final Semaphore processingPermits = new Semaphore(Runtime.getRuntime().availableProcessors());
+    // The images used in this run, completed once each one is in the cache
+    private final Map<String, CompletableFuture<OptimizedImage>> images = new ConcurrentHashMap<>();
+
+    ImageOptimizer(Path cacheDir) {
+        this.cacheDir = cacheDir;
+        this.versionDir = cacheDir.resolve("v" + VERSION);
+        this.oxipngAvailable = commandAvailable("oxipng", "--version");
+        if (!oxipngAvailable) {
+            LOGGER.info("The oxipng command is not available, so PNG images will be recompressed with ImageIO");
+        }
+        this.jpegtranAvailable = commandAvailable("jpegtran", "-version");
+        if (!jpegtranAvailable) {
+            LOGGER.info("The jpegtran command is not available, so JPEG images won't be recompressed");
+        }
+    }
+
+    static boolean isImage(Path file) {
+        return IMAGE_EXTENSIONS.contains(extension(file).toLowerCase(Locale.ROOT));
+    }
+
+    static String extension(Path file) {
+        String fileName = file.getFileName().toString();
+        return fileName.substring(fileName.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * @return The path of a downscaled variant of an image, e.g. {@code images/console-480w.png} for
+     * {@code images/console.png}
+     */
+    static Path variantPath(Path image, int width) {
+        String fileName = image.getFileName().toString();
+        int dot = fileName.lastIndexOf('.');
+        return image.resolveSibling(fileName.substring(0, dot) + "-" + width + "w" + fileName.substring(dot));
+    }
+
+    /**
+     * Returns the optimized image for a source image, processing it first if it isn't already cached. Concurrent
+     * requests for the same image wait for a single processing.
+     *
+     * @param sha The git blob SHA of the source image
+     * @param extension The image's file extension, which gives its format
+     */
+    OptimizedImage optimize(String sha, String extension, ImageSource source) throws IOException, InterruptedException {
+        CompletableFuture<OptimizedImage> imageFuture = new CompletableFuture<>();
+        CompletableFuture<OptimizedImage> existingFuture = images.putIfAbsent(sha, imageFuture);
+        if (existingFuture != null) {
+            try {
+                return existingFuture.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to optimize image " + sha, e.getCause());
+            }
+        }
+
+        try {
+            OptimizedImage image = cachedImage(sha);
+            if (image == null) {
+                processingPermits.acquire();
+                try {
+                    image = process(sha, extension.toLowerCase(Locale.ROOT), source.fetch());
+                } finally {
+                    processingPermits.release();
+                }
+            }
+            imageFuture.complete(image);
+            return image;
+        } catch (Exception e) {
+            // Let a later request for this image try again
+            images.remove(sha, imageFuture);
+            imageFuture.completeExceptionally(e);
+            if (e instanceof InterruptedException interruptedException) {
+                throw interruptedException;
+            }
+            throw e instanceof IOException ioException ? ioException : new IOException("Failed to optimize image " + sha, e);
+        }
+    }
+
+    /**
+     * Links the optimized image and its variants into place, removing any variants of the previous image which this
+     * one doesn't have.
+     *
+     * @param sha The git blob SHA of the source image
+     * @return Whether anything was changed
+     */
+    boolean install(String sha, OptimizedImage image, Path target) throws IOException {
+        Path imageDir = imageDir(sha);
+        boolean changed = link(imageDir.resolve("image"), target);
+        for (int width : VARIANT_WIDTHS) {
+            Path variant = variantPath(target, width);
+            if (image.variantWidths().contains(width)) {
+                changed |= link(imageDir.resolve(width + "w"), variant);
+            } else {
+                changed |= Files.deleteIfExists(variant);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Removes the variants written next to an image which is being removed.
+     */
+    static void removeVariants(Path image) throws IOException {
+        if (isImage(image)) {
+            for (int width : VARIANT_WIDTHS) {
+                Files.deleteIfExists(variantPath(image, width));
+            }
+        }
+    }
+
+    /**
+     * Removes the images processed by older versions, and the images which nothing links to any more, so the cache
+     * only grows with the content currently in use. As in {@link BlobStore#prune()}, an image this run didn't use is
+     * only removed once no synced file links to it, and nothing but older versions is pruned on a filesystem that
+     * can't report link counts.
+     */
+    void prune() throws IOException {
+        if (!Files.exists(cacheDir)) {
+            return;
+        }
+        try (Stream<Path> dirs = Files.list(cacheDir)) {
+            for (Path oldVersionDir : dirs.filter(dir -> !dir.equals(versionDir)).toList()) {
+                LOGGER.info("Pruning images processed by an older version from " + oldVersionDir);
+                org.apache.commons.io.FileUtils.deleteDirectory(oldVersionDir.toFile());
+            }
+        }
+        if (!Files.exists(versionDir)) {
+            return;
+        }
+        if (!Files.getFileStore(versionDir).supportsFileAttributeView("unix")) {
+            LOGGER.debug("Not pruning " + versionDir + " as its filesystem doesn't report hard link counts");
+            return;
+        }
+
+        List<Path> unusedImages;
+        try (Stream<Path> paths = Files.list(versionDir)) {
+            unusedImages = paths
+                .filter(Files::isDirectory)
+                .flatMap(prefixDir -> {
+                    try (Stream<Path> imageDirs = Files.list(prefixDir)) {
+                        return imageDirs.toList().stream();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })
+                .filter(imageDir -> !images.containsKey(imageDir.getFileName().toString()) && !isLinked(imageDir))
+                .toList();
+        }
+        for (Path unusedImage : unusedImages) {
+            org.apache.commons.io.FileUtils.deleteDirectory(unusedImage.toFile());
+        }
+
+        if (!unusedImages.isEmpty()) {
+            LOGGER.info("Pruned " + unusedImages.size() + " unused images from " + versionDir);
+        }
+    }
+
+    private static boolean isLinked(Path imageDir) {
+        try (Stream<Path> files = Files.list(imageDir)) {
+            return files.anyMatch(file -> FileTools.linkCount(file) > 1);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return The {@code srcset} for each image in a rendered page which has variants next to it, keyed by the
+     * image's {@code src}
+     */
+    static Map<String, String> srcsets(Path pageDir, String html) throws IOException {
+        Map<String, String> srcsets = new TreeMap<>();
+        Matcher img = IMG_SRC.matcher(html);
+        while (img.find()) {
+            String src = img.group(1);
+            // Only images alongside the docs have variants, not remote images or ones from the site's static folder
+            if (src.contains(":") || src.startsWith("/") || !isImage(Paths.get(src)) || srcsets.containsKey(src)) {
+                continue;
+            }
+            Path image = pageDir.resolve(src).normalize();
+            List<Integer> variantWidths = VARIANT_WIDTHS.stream()
+                .filter(width -> Files.isRegularFile(variantPath(image, width)))
+                .toList();
+            if (variantWidths.isEmpty() || !Files.isRegularFile(image)) {
+                continue;
+            }
+
+            StringBuilder srcset = new StringBuilder();
+            for (int width : variantWidths) {
+                srcset.append(variantPath(Paths.get(src), width).toString().replace('\\', '/')).append(' ').append(width).append("w, ");
+            }
+            srcset.append(src).append(' ').append(imageWidth(image)).append('w');
+            srcsets.put(src, srcset.toString());
+        }
+        return srcsets;
+    }
+
+    /**
+     * Adds the given {@code srcset}s, and the matching {@code sizes}, to the images in a rendered page.
+     */
+    static String withSrcsets(String html, Map<String, String> srcsets) {
+        if (srcsets.isEmpty()) {
+            return html;
+        }
+        return IMG_SRC.matcher(html).replaceAll(img -> {
+            String srcset = srcsets.get(img.group(1));
+            return Matcher.quoteReplacement(srcset == null
+                ? img.group()
+                : img.group() + " srcset=\"" + srcset + "\" sizes=\"" + SIZES + "\"");
+        });
+    }
+
+    private OptimizedImage cachedImage(String sha) throws IOException {
+        Path metadataPath = imageDir(sha).resolve("image.json");
+        if (!Files.isRegularFile(metadataPath)) {
+            return null;
+        }
+        return mapper.readValue(metadataPath.toFile(), OptimizedImage.class);
+    }
+
+    private OptimizedImage process(String sha, String extension, Path source) throws IOException {
+        LOGGER.debug("Optimizing image " + sha);
+        Path imageDir = imageDir(sha);
+        Files.createDirectories(imageDir.getParent());
+        Path tempDir = Files.createTempDirectory(imageDir.getParent(), sha);
+        try {
+            Path optimized = tempDir.resolve("image");
+            Files.copy(source, optimized);
+            List<Integer> variantWidths = new ArrayList<>();
+            int width = 0;
+
+            BufferedImage image = null;
+            try {
+                image = ImageIO.read(source.toFile());
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("Unable to read image " + sha + ", so it will be published as it is: " + e.getMessage());
+            }
+            if (image != null) {
+                width = image.getWidth();
+                if (extension.equals("png")) {
+                    recompressPng(image, optimized);
+                } else {
+                    recompressJpeg(optimized);
+                }
+                for (int variantWidth : VARIANT_WIDTHS) {
+                    if (variantWidth < width) {
+                        Path variant = tempDir.resolve(variantWidth + "w");
+                        writeImage(scale(image, variantWidth), extension, variant);
+                        if (extension.equals("png") && oxipngAvailable) {
+                            oxipng(variant);
+                        }
+                        variantWidths.add(variantWidth);
+                    }
+                }
+            }
+
+            OptimizedImage optimizedImage = new OptimizedImage(FileTools.gitBlobSha(optimized), width, variantWidths);
+            mapper.writeValue(tempDir.resolve("image.json").toFile(), optimizedImage);
+            try (Stream<Path> files = Files.list(tempDir)) {
+                for (Path file : files.toList()) {
+                    file.toFile().setReadOnly();
+                }
+            }
+            try {
+                Files.move(tempDir, imageDir, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileSystemException e) {
+                // Another run has just cached the same image
+                if (cachedImage(sha) == null) {
+                    throw e;
+                }
+            }
+            LOGGER.debug("Optimized image " + sha + " from " + Files.size(source) + " to " + Files.size(imageDir.resolve(optimized.getFileName()))
+                + " bytes, with " + variantWidths.size() + " variants");
+            return optimizedImage;
+        } finally {
+            org.apache.commons.io.FileUtils.deleteDirectory(tempDir.toFile());
+        }
+    }
+
+    /**
+     * Replaces {@code optimized} with a smaller, pixel for pixel identical, encoding of the image if one can be made.
+     */
+    private void recompressPng(BufferedImage image, Path optimized) throws IOException {
+        if (oxipngAvailable) {
+            oxipng(optimized);
+            return;
+        }
+        if (hasUnsupportedPngChunks(optimized)) {
+            return;
+        }
+
+        Path reencoded = optimized.resolveSibling("reencoded");
+        writeImage(image, "png", reencoded);
+        BufferedImage reread = ImageIO.read(reencoded.toFile());
+        if (Files.size(reencoded) < Files.size(optimized) && samePixels(image, reread)) {
+            Files.move(reencoded, optimized, StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(reencoded);
+        }
+    }
+
+    /**
+     * Replaces {@code optimized} with a smaller, losslessly transcoded, copy of the JPEG if {@code jpegtran} can make
+     * one. The image data is left as it is, only its Huffman coding is optimized and its metadata dropped.
+     */
+    private void recompressJpeg(Path optimized) throws IOException {
+        if (!jpegtranAvailable || hasUnsupportedJpegSegments(optimized)) {
+            return;
+        }
+
+        Path transcoded = optimized.resolveSibling("transcoded");
+        runCommand(optimized, "jpegtran", "-copy", "none", "-optimize", "-outfile", transcoded.toString(), optimized.toString());
+        if (Files.size(transcoded) < Files.size(optimized)) {
+            Files.move(transcoded, optimized, StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(transcoded);
+        }
+    }
+
+    private void oxipng(Path png) throws IOException {
+        // Images are already processed in parallel, so each oxipng process only needs one thread
+        runCommand(png, "oxipng", "--quiet", "--opt", "4", "--strip", "safe", "--threads", "1", png.toString());
+    }
+
+    private static void runCommand(Path image, String... command) throws IOException {
+        Process process = new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .start();
+        try {
+            String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            if (process.waitFor() != 0) {
+                throw new IOException(command[0] + " failed to optimize " + image + ": " + output.strip());
+            }
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted optimizing " + image + " with " + command[0], e);
+        }
+    }
+
+    private static boolean hasUnsupportedPngChunks(Path png) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(png)))) {
+            if (!Arrays.equals(in.readNBytes(PNG_SIGNATURE.length), PNG_SIGNATURE)) {
+                return true;
+            }
+            // The chunks which matter all come before the image data
+            while (true) {
+                int length = in.readInt();
+                String type = new String(in.readNBytes(4), StandardCharsets.US_ASCII);
+                if (type.equals("IDAT") || type.equals("IEND")) {
+                    return false;
+                }
+                if (UNSUPPORTED_PNG_CHUNKS.contains(type)) {
+                    return true;
+                }
+                in.skipNBytes(length + 4L);
+            }
+        } catch (EOFException e) {
+            return true;
+        }
+    }
+
+    private static boolean hasUnsupportedJpegSegments(Path jpeg) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(jpeg)))) {
+            if (in.readUnsignedShort() != JPEG_START_OF_IMAGE) {
+                return true;
+            }
+            // The segments which matter all come before the image data
+            while (true) {
+                int marker = in.readUnsignedShort();
+                if (marker == JPEG_START_OF_SCAN || marker == JPEG_END_OF_IMAGE) {
+                    return false;
+                }
+                if (UNSUPPORTED_JPEG_SEGMENTS.contains(marker) || (marker & 0xFF00) != 0xFF00) {
+                    return true;
+                }
+                in.skipNBytes(in.readUnsignedShort() - 2L);
+            }
+        } catch (EOFException e) {
+            return true;
+        }
+    }
+
+    private static boolean samePixels(BufferedImage image, BufferedImage other) {
+        if (other == null || image.getWidth() != other.getWidth() || image.getHeight() != other.getHeight()) {
+            return false;
+        }
+        int width = image.getWidth();
+        int[] row = new int[width];
+        int[] otherRow = new int[width];
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            other.getRGB(0, y, width, 1, otherRow, 0, width);
+            if (!Arrays.equals(row, otherRow)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Downscales an image by halving it until it's close to the target width, then scaling it the rest of the way,
+     * which keeps detail that a single bilinear step would alias away.
+     */
+    private static BufferedImage scale(BufferedImage image, int width) {
+        int height = Math.max(1, Math.round(image.getHeight() * (float) width / image.getWidth()));
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage scaled = image;
+        do {
+            int stepWidth = Math.max(width, scaled.getWidth() / 2);
+            int stepHeight = stepWidth == width ? height : Math.max(height, scaled.getHeight() / 2);
+            BufferedImage step = new BufferedImage(stepWidth, stepHeight, type);
+            Graphics2D graphics = step.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                graphics.drawImage(scaled, 0, 0, stepWidth, stepHeight, null);
+            } finally {
+                graphics.dispose();
+            }
+            scaled = step;
+        } while (scaled.getWidth() != width);
+        return scaled;
+    }
+
+    private static void writeImage(BufferedImage image, String extension, Path target) throws IOException {
+        boolean jpeg = !extension.equals("png");
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(jpeg ? "jpeg" : "png").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        // For PNG the quality picks the deflate level, with 0 being the smallest output
+        param.setCompressionQuality(jpeg ? JPEG_QUALITY : 0f);
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(target.toFile())) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private static int imageWidth(Path image) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(image.toFile())) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("Unable to read the width of image " + image);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in);
+                return reader.getWidth(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static boolean link(Path cached, Path target) throws IOException {
+        if (Files.exists(target) && Files.isSameFile(cached, target)) {
+            return false;
+        }
+        BlobStore.link(cached, target);
+        return true;
+    }
+
+    private static boolean commandAvailable(String command, String versionOption) {
+        try {
+            Process process = new ProcessBuilder(command, versionOption).redirectErrorStream(true).start();
+            process.getInputStream().readAllBytes();
+            return process.waitFor(10, TimeUnit.SECONDS) && process.exitValue() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private Path imageDir(String sha) {
+        return versionDir.resolve(sha.substring(0, 2)).resolve(sha);
+    }
+}
+
+/**
+ * An on-disk cache of HTTP response bodies, keyed by URL, along with the validators needed to revalidate them with a
+ * conditional request. The cache is bounded in size by evicting the least recently used responses, so it can be kept
+ * between CI runs.
+ */
+class HttpResponseCache {
+
+    static final Logger LOGGER = Logger.getLogger(HttpResponseCache.class);
+
+    private static final String BODY_SUFFIX = ".body";
+    private static final String METADATA_SUFFIX = ".json";
+
+    private final Path cacheDir;
+    private final long maxSizeBytes;
+    private final ObjectMapper mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    /**
+     * @param url The URL the response was fetched from
+     * @param etag The ETag response header, if there was one
+     * @param lastModified The Last-Modified response header, if there was one
+     */
+    record CachedResponse(String url, String etag, String lastModified) {}
+
+    /**
+     * Reads a response body while it is being stored.
+     */
+    @FunctionalInterface
+    interface BodyReader<T> {
+        T read(InputStream body) throws IOException;
+    }
+
+    /**
+     * @param cacheDir The directory the cached responses are stored in
+     * @param maxSizeBytes The size {@link #evict()} trims the cache down to
+     */
+    HttpResponseCache(Path cacheDir, long maxSizeBytes) {
+        this.cacheDir = cacheDir;
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * @return The cached response for the URL, or null if there isn't one that can be revalidated
+     */
+    CachedResponse lookup(String url) throws IOException {
+        Path metadataPath = entryPath(url, METADATA_SUFFIX);
+        if (!Files.exists(metadataPath) || !Files.exists(entryPath(url, BODY_SUFFIX))) {
+            return null;
+        }
+        CachedResponse cached = mapper.readValue(metadataPath.toFile(), CachedResponse.class);
+        // Guard against the (unlikely) event of a hash collision
+        return url.equals(cached.url()) ? cached : null;
+    }
+
+    /**
+     * Marks the cached response for the URL as used, so it is the last to be evicted.
+     *
+     * @return The path of the cached response body
+     */
+    Path revalidated(String url) throws IOException {
+        Path bodyPath = entryPath(url, BODY_SUFFIX);
+        Files.setLastModifiedTime(bodyPath, FileTime.fromMillis(System.currentTimeMillis()));
+        return bodyPath;
+    }
+
+    /**
+     * Stores a response body and its validators, replacing any existing entry for the URL, while {@code reader}
+     * reads the body as it is written. Whatever the reader leaves unread is still stored. Nothing is stored if the
+     * reader fails.
+     *
+     * @return The result of the reader
+     */
+    <T> T store(String url, InputStream body, String etag, String lastModified, BodyReader<T> reader) throws IOException {
+        Path bodyPath = entryPath(url, BODY_SUFFIX);
+        Files.createDirectories(bodyPath.getParent());
+
+        // Write to a temporary file first, so a failed or concurrent download never leaves a partial body in place
+        Path tempPath = Files.createTempFile(bodyPath.getParent(), bodyPath.getFileName().toString(), ".tmp");
+        T result;
+        try {
+            try (OutputStream out = Files.newOutputStream(tempPath);
+                 InputStream teeBody = new org.apache.commons.io.input.TeeInputStream(body, out)) {
+                result = reader.read(org.apache.commons.io.input.CloseShieldInputStream.wrap(teeBody));
+                teeBody.transferTo(OutputStream.nullOutputStream());
+            }
+            Files.move(tempPath, bodyPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+
+        Path metadataPath = entryPath(url, METADATA_SUFFIX);
+        if (etag != null || lastModified != null) {
+            mapper.writeValue(metadataPath.toFile(), new CachedResponse(url, etag, lastModified));
+        } else {
+            // Without a validator there is nothing to revalidate next time
+            Files.deleteIfExists(metadataPath);
+        }
+        return result;
+    }
+
+    /**
+     * Removes the least recently used responses until the cache is no larger than its maximum size.
+     */
+    void evict() throws IOException {
+        if (!Files.exists(cacheDir)) {
+            return;
+        }
+
+        List<Path> bodies;
+        try (var paths = Files.walk(cacheDir)) {
+            bodies = paths.filter(path -> path.getFileName().toString().endsWith(BODY_SUFFIX)).collect(Collectors.toCollection(ArrayList::new));
+        }
+
+        Map<Path, FileTime> lastUsed = new HashMap<>();
+        long totalSize = 0;
+        for (Path body : bodies) {
+            lastUsed.put(body, Files.getLastModifiedTime(body));
+            totalSize += Files.size(body);
+        }
+        bodies.sort(Comparator.comparing(lastUsed::get));
+
+        int evicted = 0;
+        for (Path body : bodies) {
+            if (totalSize <= maxSizeBytes) {
+                break;
+            }
+            totalSize -= Files.size(body);
+            String bodyFileName = body.getFileName().toString();
+            Files.deleteIfExists(body.resolveSibling(bodyFileName.substring(0, bodyFileName.length() - BODY_SUFFIX.length()) + METADATA_SUFFIX));
+            Files.delete(body);
+            evicted++;
+        }
+
+        if (evicted > 0) {
+            LOGGER.info("Evicted " + evicted + " responses from the HTTP cache at " + cacheDir);
+        }
+    }
+
+    private Path entryPath(String url, String suffix) {
+        String key = FileTools.sha256(url);
+        // Spread entries over subdirectories so no single directory gets too large
+        return cacheDir.resolve(key.substring(0, 2)).resolve(key + suffix);
+    }
+}
+
+/**
+ * The record of which files were written by the last sync of a source ref, and the git blob SHA each one was synced at.
+ *
+ * @param docsFolderPath The folder within the source repository that was synced
+ * @param frontMatter The front matter injected into the index files, if any
+ * @param files Map of file path (relative to the output folder) to git blob SHA
+ * @param localFiles Map of file path to the git blob SHA of the file as written, for the files (i.e. index files)
+ *                   whose contents were changed from the blob as they were written
+ */
+record SyncManifest(String docsFolderPath, String frontMatter, Map<String, String> files, Map<String, String> localFiles) {
+
+    static final Logger LOGGER = Logger.getLogger(SyncManifest.class);
+
+    /**
+     * The files (relative to the output folder) which were added, modified or removed by a sync.
+     */
+    record Changes(Set<String> added, Set<String> modified, Set<String> removed) {}
+
+    SyncManifest {
+        // Manifests written before index files were tracked don't have localFiles
+        localFiles = localFiles != null ? localFiles : Map.of();
+    }
+
+    /**
+     * @return The files whose local contents differ between {@code previous} and this manifest
+     */
+    Changes changesSince(SyncManifest previous) {
+        Set<String> added = new TreeSet<>();
+        Set<String> modified = new TreeSet<>();
+        Set<String> removed = new TreeSet<>();
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            String previousSha = previous.files().get(file.getKey());
+            if (previousSha == null) {
+                added.add(file.getKey());
+            } else if (!previous.localFiles().getOrDefault(file.getKey(), previousSha).equals(localFiles.getOrDefault(file.getKey(), file.getValue()))) {
+                modified.add(file.getKey());
+            }
+        }
+        for (String file : previous.files().keySet()) {
+            if (!files.containsKey(file)) {
+                removed.add(file);
+            }
+        }
+        return new Changes(added, modified, removed);
+    }
+
+    /**
+     * @return The git blob SHA the local copy of a file should have if it is already up to date with the given blob
+     */
+    String expectedLocalSha(String file, String sha, String frontMatter) {
+        if (sha.equals(files.get(file)) && Objects.equals(frontMatter, this.frontMatter)) {
+            return localFiles.getOrDefault(file, sha);
+        }
+        return sha;
+    }
+
+    /**
+     * Loads the manifest for a previous sync. If there is no manifest, or it was written for a different docs folder,
+     * an empty manifest is returned so that nothing is removed that this sync doesn't know it wrote.
+     */
+    static SyncManifest load(ObjectMapper mapper, Path manifestPath, Path docsFolderPath) throws IOException {
+        if (!Files.exists(manifestPath)) {
+            return new SyncManifest(docsFolderPath.toString(), null, Map.of(), Map.of());
+        }
+
+        SyncManifest manifest = mapper.readValue(manifestPath.toFile(), SyncManifest.class);
+        if (!docsFolderPath.toString().equals(manifest.docsFolderPath())) {
+            LOGGER.info("Ignoring sync manifest " + manifestPath + " as it was written for docs folder " + manifest.docsFolderPath());
+            return new SyncManifest(docsFolderPath.toString(), null, Map.of(), Map.of());
+        }
+        return manifest;
+    }
+
+    void save(ObjectMapper mapper, Path manifestPath) throws IOException {
+        Files.createDirectories(manifestPath.getParent());
+        mapper.writerWithDefaultPrettyPrinter().writeValue(manifestPath.toFile(), this);
+    }
+}
+
+/**
+ * The docs folder tree SHA each output folder was last synced at, and the inputs each contents page was last
+ * generated from, kept in the cache directory between runs. Refs and contents pages whose inputs haven't changed since
+ * are skipped.
+ *
+ * @param refs Map of output folder (relative to the docs root) to the ref last synced into it
+ * @param contentsPages Map of source name to a hash of the inputs its contents page was last generated from
+ */
+record SyncState(Map<String, SyncedRef> refs, Map<String, String> contentsPages) {
+
+    /**
+     * Unknown properties, such as the {@code frontMatter} which earlier versions recorded in place of
+     * {@code frontMatterKey}, are ignored, so an older state just means the ref is synced again.
+     *
+     * @param commitSha The SHA of the commit the ref pointed to
+     * @param treeSha The SHA of the docs folder's tree at that commit
+     * @param frontMatterKey The {@link TemplateRenderer#renderKey(String, Map)} of the front matter injected into the
+     *                       index files
+     * @param images The {@link ImageOptimizer#VERSION} the images were optimized with, or null if they weren't
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    record SyncedRef(String commitSha, String treeSha, String frontMatterKey, String images) {}
+
+    SyncState {
+        refs = new ConcurrentHashMap<>(refs != null ? refs : Map.of());
+        contentsPages = new ConcurrentHashMap<>(contentsPages != null ? contentsPages : Map.of());
+    }
+
+    /**
+     * @return Whether {@code outputFolder} was last synced from the same docs folder tree with the same front matter
+     * and image optimization
+     */
+    boolean isRefUnchanged(String outputFolder, GitHubFolderDownloader.ResolvedRef resolvedRef, String frontMatterKey, String images) {
+        SyncedRef syncedRef = refs.get(outputFolder);
+        return resolvedRef != null && syncedRef != null
+            && resolvedRef.treeSha().equals(syncedRef.treeSha()) && frontMatterKey.equals(syncedRef.frontMatterKey())
+            && Objects.equals(images, syncedRef.images());
+    }
+
+    /**
+     * Records that {@code outputFolder} is being synced, so it isn't skipped next time if the sync doesn't complete.
+     */
+    void refSyncStarted(String outputFolder) {
+        refs.remove(outputFolder);
+    }
+
+    /**
+     * Records that {@code outputFolder} has been synced. Nothing is recorded if the ref wasn't resolved, as there is
+     * then no tree SHA to compare against next time.
+     */
+    void refSynced(String outputFolder, GitHubFolderDownloader.ResolvedRef resolvedRef, String frontMatterKey, String images) {
+        if (resolvedRef != null) {
+            refs.put(outputFolder, new SyncedRef(resolvedRef.commitSha(), resolvedRef.treeSha(), frontMatterKey, images));
+        }
+    }
+
+    boolean isContentsPageUnchanged(String sourceName, String inputsHash) {
+        return inputsHash != null && inputsHash.equals(contentsPages.get(sourceName));
+    }
+
+    void contentsPageGenerated(String sourceName, String inputsHash) {
+        if (inputsHash != null) {
+            contentsPages.put(sourceName, inputsHash);
+        } else {
+            contentsPages.remove(sourceName);
+        }
+    }
+
+    static SyncState load(ObjectMapper mapper, Path statePath) throws IOException {
+        if (!Files.exists(statePath)) {
+            return new SyncState(Map.of(), Map.of());
+        }
+        return mapper.readValue(statePath.toFile(), SyncState.class);
+    }
+
+    void save(ObjectMapper mapper, Path statePath) throws IOException {
+        Files.createDirectories(statePath.getParent());
+        mapper.writerWithDefaultPrettyPrinter().writeValue(statePath.toFile(), this);
+    }
+}
+
+/**
+ * The files under the content root which were added, modified or removed by a sync, written out at the end of it so
+ * a downstream step can rebuild just the affected pages rather than the whole site.
+ */
+class ChangeManifest {
+
+    static final Logger LOGGER = Logger.getLogger(ChangeManifest.class);
+
+    /**
+     * @param added The files added, relative to the content root
+     * @param modified The files whose contents changed, relative to the content root
+     * @param removed The files removed, relative to the content root
+     */
+    record Manifest(String createdAt, List<String> added, List<String> modified, List<String> removed) {}
+
+    private final Path contentRoot;
+    private final Set<String> added = ConcurrentHashMap.newKeySet();
+    private final Set<String> modified = ConcurrentHashMap.newKeySet();
+    private final Set<String> removed = ConcurrentHashMap.newKeySet();
+
+    ChangeManifest(Path contentRoot) {
+        this.contentRoot = contentRoot.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Records the changes made by syncing a ref into {@code outputDirectory}.
+     */
+    void record(Path outputDirectory, SyncManifest.Changes changes) {
+        changes.added().forEach(file -> added(outputDirectory.resolve(file)));
+        changes.modified().forEach(file -> modified(outputDirectory.resolve(file)));
+        changes.removed().forEach(file -> removed(outputDirectory.resolve(file)));
+    }
+
+    void added(Path file) {
+        added.add(relativePath(file));
+    }
+
+    void modified(Path file) {
+        modified.add(relativePath(file));
+    }
+
+    void removed(Path file) {
+        removed.add(relativePath(file));
+    }
+
+    boolean isEmpty() {
+        return added.isEmpty() && modified.isEmpty() && removed.isEmpty();
+    }
+
+    /**
+     * Adds the changes from another manifest, e.g. one written by a shard.
+     */
+    void addAll(Manifest manifest) {
+        added.addAll(manifest.added());
+        modified.addAll(manifest.modified());
+        removed.addAll(manifest.removed());
+    }
+
+    Manifest toManifest() {
+        return new Manifest(Instant.now().toString(),
+            new ArrayList<>(new TreeSet<>(added)), new ArrayList<>(new TreeSet<>(modified)), new ArrayList<>(new TreeSet<>(removed)));
+    }
+
+    void write(ObjectMapper mapper, Path manifestPath) throws IOException {
+        Manifest manifest = toManifest();
+        Files.createDirectories(manifestPath.toAbsolutePath().getParent());
+        mapper.writerWithDefaultPrettyPrinter().writeValue(manifestPath.toFile(), manifest);
+        LOGGER.info("Wrote change manifest to " + manifestPath + ": " + added.size() + " added, " + modified.size()
+            + " modified and " + removed.size() + " removed");
+    }
+
+    private String relativePath(Path file) {
+        // Always use forward slashes, as Hugo does for page paths
+        return contentRoot.relativize(file.toAbsolutePath().normalize()).toString().replace(File.separatorChar, '/');
+    }
+}
+
+class FileTools {
+
+    private static final byte[] TOML_FRONT_MATTER_DELIMITER = "+++".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] YAML_FRONT_MATTER_DELIMITER = "---".getBytes(StandardCharsets.US_ASCII);
+    // The longest delimiter line, which is a delimiter followed by a Windows line ending
+    private static final int FRONT_MATTER_DELIMITER_LINE_LENGTH = 5;
+
+    /**
+     * Writes {@code content} to {@code filePath}, preceded by {@code frontMatter} unless the content already starts
+     * with Hugo front matter of its own. Only the leading bytes of the content are inspected before it is streamed
+     * through, so the content is never held in memory.
+     *
+     * @return True if the front matter was written
+     */
+    public static boolean writeWithFrontMatter(InputStream content, Path filePath, String frontMatter) throws IOException {
+        // Don't close the buffered stream, as the content may be an entry in an archive that is still being read
+        BufferedInputStream in = new BufferedInputStream(content);
+        boolean addFrontMatter = !hasFrontMatter(in, filePath);
+
+        // Replace the file rather than writing to it in place, as it may be a hard link to a shared blob
+        Files.deleteIfExists(filePath);
+        try (OutputStream out = Files.newOutputStream(filePath, StandardOpenOption.CREATE_NEW)) {
+            if (addFrontMatter) {
+                out.write(frontMatter.getBytes(StandardCharsets.UTF_8));
+            }
+            in.transferTo(out);
+        }
+        return addFrontMatter;
+    }
+
+    /**
+     * Checks whether the stream starts with a Hugo front matter delimiter line, without consuming any of it. A
+     * {@code +++} line opens TOML front matter in any page, but a {@code ---} line is only taken as YAML front matter
+     * in Markdown, as in AsciiDoc it opens a block.
+     *
+     * @param filePath The file the stream is the content of, which decides the delimiters that are recognised
+     */
+    public static boolean hasFrontMatter(BufferedInputStream in, Path filePath) throws IOException {
+        in.mark(FRONT_MATTER_DELIMITER_LINE_LENGTH);
+        byte[] leadingBytes = in.readNBytes(FRONT_MATTER_DELIMITER_LINE_LENGTH);
+        in.reset();
+        if (isDelimiterLine(leadingBytes, TOML_FRONT_MATTER_DELIMITER)) {
+            return true;
+        }
+        return filePath.getFileName().toString().endsWith(".md") && isDelimiterLine(leadingBytes, YAML_FRONT_MATTER_DELIMITER);
+    }
+
+    /**
+     * @return True if the bytes start with a line holding only the delimiter, so e.g. {@code ----} doesn't match
+     */
+    private static boolean isDelimiterLine(byte[] leadingBytes, byte[] delimiter) {
+        int length = delimiter.length;
+        if (leadingBytes.length <= length || !Arrays.equals(leadingBytes, 0, length, delimiter, 0, length)) {
+            return false;
+        }
+        return leadingBytes[length] == '\n'
+            || (leadingBytes[length] == '\r' && leadingBytes.length > length + 1 && leadingBytes[length + 1] == '\n');
+    }
+
+    /**
+     * @param relativePath The path of a file relative to the root of a docs folder
+     * @return True if the file is one of the index files returned by {@link #findIndexFiles(Path)}
+     */
+    public static boolean isIndexFile(Path relativePath) {
+        String fileName = relativePath.getFileName().toString();
+        return relativePath.getNameCount() == 1 && (fileName.endsWith("index.adoc") || fileName.endsWith("index.md"));
+    }
+
+    /**
+     * Copies {@code content} to {@code target}, working out its git blob SHA on the way through when {@code size} is
+     * known up front, and by reading {@code target} back when it isn't.
+     *
+     * @param size The number of bytes {@code content} holds, or -1 if that isn't known
+     */
+    public static String copyWithGitBlobSha(InputStream content, long size, Path target) throws IOException {
+        if (size < 0) {
+            Files.copy(content, target, StandardCopyOption.REPLACE_EXISTING);
+            return gitBlobSha(target);
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(("blob " + size + "\0").getBytes(StandardCharsets.US_ASCII));
+            try (OutputStream out = new DigestOutputStream(Files.newOutputStream(target), digest)) {
+                content.transferTo(out);
+            }
+            if (Files.size(target) != size) {
+                throw new IOException("Expected " + size + " bytes for " + target + " but read " + Files.size(target));
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    /**
+     * Replaces the {@code target} folder with a copy of {@code source}, hard linking the files rather than copying
+     * them where the filesystem allows it.
+     */
+    public static void replaceWithLinkedCopy(Path source, Path target) throws IOException {
+        if (Files.exists(target)) {
+            org.apache.commons.io.FileUtils.deleteDirectory(target.toFile());
+        }
+        try (Stream<Path> paths = Files.walk(source)) {
+            for (Path path : paths.toList()) {
+                Path targetPath = target.resolve(source.relativize(path).toString());
+                if (Files.isDirectory(path)) {
+                    Files.createDirectories(targetPath);
+                } else {
+                    BlobStore.link(path, targetPath);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the SHA-1 of a file in the same way git does for blob objects, so it can be compared with the
+     * {@code sha} of a tree entry.
+     */
+    public static String gitBlobSha(Path filePath) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(("blob " + Files.size(filePath) + "\0").getBytes(StandardCharsets.US_ASCII));
+            try (InputStream in = Files.newInputStream(filePath)) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    /**
+     * @return The number of hard links to the file, which needs a filesystem supporting the {@code unix} attributes
+     */
+    public static int linkCount(Path path) {
+        try {
+            return (Integer) Files.getAttribute(path, "unix:nlink");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static String sha256(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Deletes a file, then any of its parent directories (up to but not including {@code root}) which are left empty.
+     */
+    public static void deleteFileAndEmptyParents(Path filePath, Path root) throws IOException {
+        Files.deleteIfExists(filePath);
+        Path parent = filePath.getParent();
+        while (parent != null && !parent.equals(root) && parent.startsWith(root)) {
+            try (var entries = Files.list(parent)) {
+                if (entries.findAny().isPresent()) {
+                    return;
+                }
+            }
+            Files.delete(parent);
+            parent = parent.getParent();
+        }
+    }
+
+    /**
+     * Finds the files under the Hugo content root which Hugo renders as pages. Files inside a leaf bundle (a directory
+     * holding an {@code index} file) are resources of the bundle's index page rather than pages of their own.
+     */
+    public static List<Path> findPageFiles(Path contentRoot) throws IOException {
+        if (!Files.isDirectory(contentRoot)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.walk(contentRoot)) {
+            return files
+                .filter(Files::isRegularFile)
+                .filter(file -> file.getFileName().toString().endsWith(".md") || file.getFileName().toString().endsWith(".adoc"))
+                .filter(file -> isPage(file, contentRoot))
+                .toList();
+        }
+    }
+
+    /**
+     * @return True if Hugo renders the file as a page, rather than as a resource of a leaf bundle
+     */
+    static boolean isPage(Path file, Path contentRoot) {
+        String baseName = baseName(file.getFileName().toString());
+        Path directory = file.getParent();
+        if (baseName.equals("index") || baseName.equals("_index")) {
+            directory = directory.getParent();
+        }
+        for (; directory != null && directory.startsWith(contentRoot); directory = directory.getParent()) {
+            if (Files.isRegularFile(directory.resolve("index.md")) || Files.isRegularFile(directory.resolve("index.adoc"))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The file name without its extension
+     */
+    public static String baseName(String fileName) {
+        int extensionIndex = fileName.lastIndexOf('.');
+        return extensionIndex > 0 ? fileName.substring(0, extensionIndex) : fileName;
+    }
+
+    public static List<Path> findIndexFiles(Path directory) {
+        FileFilter fileFilter = WildcardFileFilter.builder().setWildcards("*index.adoc", "*index.md").get();
+        File[] files = directory.toFile().listFiles(fileFilter);
+        return Arrays.asList(files).stream().map(file -> file.toPath()).toList();
+    }
+
+}
+
+/**
+ * Renders the Jinja templates in a template directory using a single shared Jinjava engine. Each template is parsed
+ * once and the parsed tree reused for every render, until the template file's modification time changes.
+ * <p>
+ * Creating the engine loads a large part of Jinjava, which takes a noticeable share of the script's startup time, so
+ * it is only created when the first template is rendered. A run whose refs are all unchanged never creates it, as
+ * refs are compared using {@link #renderKey(String, Map)} rather than their rendered front matter.
+ */
+class TemplateRenderer {
+
+    static final Logger LOGGER = Logger.getLogger(TemplateRenderer.class);
+
+    private record ParsedTemplate(FileTime lastModified, Node root) {}
+
+    private final Path templateDirPath;
+    private final Map<Path, ParsedTemplate> parsedTemplates = new ConcurrentHashMap<>();
+    private volatile Jinjava jinjava;
+
+    TemplateRenderer(Path templateDirPath) {
+        this.templateDirPath = templateDirPath;
+    }
+
+    String render(String templateFileName, Map<String, Object> context) throws IOException {
+        Path templatePath = templateDirPath.resolve(templateFileName);
+
+        if (!Files.exists(templatePath)) {
+            LOGGER.error("Template file does not exist: " + templatePath);
+            throw new FileNotFoundException("Template file does not exist: " + templatePath);
+        }
+        Jinjava jinjava = jinjava();
+        Node root = parse(jinjava, templatePath);
+
+        // Each render gets its own interpreter and context, so renders can run concurrently against the shared tree
+        JinjavaInterpreter interpreter = new JinjavaInterpreter(
+            jinjava, new Context(jinjava.getGlobalContext(), context), jinjava.getGlobalConfig());
+        JinjavaInterpreter.pushCurrent(interpreter);
+        try {
+            String rendered = interpreter.render(root);
+            throwIfFatal(templatePath, interpreter);
+            return rendered;
+        } finally {
+            JinjavaInterpreter.popCurrent();
+        }
+    }
+
+    /**
+     * @return A hash of a template and the context it is rendered with, which changes whenever the rendered output
+     *         would, without rendering it
+     */
+    String renderKey(String templateFileName, Map<String, Object> context) throws IOException {
+        return FileTools.sha256(Files.readString(templateDirPath.resolve(templateFileName)) + '\n' + new TreeMap<>(context));
+    }
+
+    private Jinjava jinjava() {
+        Jinjava engine = jinjava;
+        if (engine == null) {
+            synchronized (this) {
+                engine = jinjava;
+                if (engine == null) {
+                    engine = new Jinjava();
+                    jinjava = engine;
+                }
+            }
+        }
+        return engine;
+    }
+
+    private Node parse(Jinjava jinjava, Path templatePath) throws IOException {
+        FileTime lastModified = Files.getLastModifiedTime(templatePath);
+        ParsedTemplate parsedTemplate = parsedTemplates.get(templatePath);
+        if (parsedTemplate == null || !parsedTemplate.lastModified().equals(lastModified)) {
+            // Two threads parsing the same template at once just do the same work twice, so there's no need to lock
+            JinjavaInterpreter interpreter = new JinjavaInterpreter(jinjava, jinjava.getGlobalContextCopy(), jinjava.getGlobalConfig());
+            Node root = interpreter.parse(Files.readString(templatePath));
+            throwIfFatal(templatePath, interpreter);
+            parsedTemplate = new ParsedTemplate(lastModified, root);
+            parsedTemplates.put(templatePath, parsedTemplate);
+        }
+        return parsedTemplate.root();
+    }
+
+    // Matches the behaviour of Jinjava.render(), which throws rather than returning partially rendered output
+    private static void throwIfFatal(Path templatePath, JinjavaInterpreter interpreter) {
+        List<TemplateError> errors = interpreter.getErrorsCopy();
+        if (errors.stream().anyMatch(error -> error.getSeverity() == TemplateError.ErrorType.FATAL)) {
+            throw new FatalTemplateErrorsException(templatePath.toString(), errors);
+        }
+    }
+}
+
+/**
+ * A Hugo content file, split into its front matter and body.
+ *
+ * @param frontMatter The front matter block, including its {@code +++} (TOML) or {@code ---} (YAML) delimiters, or
+ *                    empty if the file has none
+ * @param frontMatterValues The top level keys of the front matter, with any quotes around their values removed
+ * @param body The content following the front matter
+ */
+record ContentFile(String frontMatter, Map<String, String> frontMatterValues, String body) {
+
+    static ContentFile read(Path file) throws IOException {
+        String content = Files.readString(file);
+        for (String delimiter : List.of("+++", "---")) {
+            if (!content.startsWith(delimiter + "\n") && !content.startsWith(delimiter + "\r\n")) {
+                continue;
+            }
+            int end = content.indexOf("\n" + delimiter, delimiter.length());
+            if (end == -1) {
+                break;
+            }
+
+            Map<String, String> values = new HashMap<>();
+            String separator = delimiter.equals("+++") ? "=" : ":";
+            for (String line : content.substring(delimiter.length(), end).lines().toList()) {
+                // Only top level keys are needed, which come before the first TOML table and aren't indented in YAML
+                if (line.startsWith("[")) {
+                    break;
+                }
+                int separatorIndex = line.indexOf(separator);
+                if (separatorIndex > 0 && !Character.isWhitespace(line.charAt(0))) {
+                    String value = line.substring(separatorIndex + 1).strip();
+                    if (value.length() >= 2 && (value.startsWith("\"") || value.startsWith("'")) && value.endsWith(value.substring(0, 1))) {
+                        value = value.substring(1, value.length() - 1);
+                    }
+                    values.put(line.substring(0, separatorIndex).strip(), value);
+                }
+            }
+
+            // The body can start on the same line as the closing delimiter
+            int bodyStart = end + 1 + delimiter.length();
+            if (content.startsWith("\r\n", bodyStart)) {
+                bodyStart += 2;
+            } else if (content.startsWith("\n", bodyStart)) {
+                bodyStart += 1;
+            }
+            return new ContentFile(content.substring(0, end + 1 + delimiter.length()), values, content.substring(bodyStart));
+        }
+        return new ContentFile("", Map.of(), content);
+    }
+}
+
+/**
+ * Expands AsciiDoc include directives the way Asciidoctor does when rendering a page, substituting the attributes
+ * defined so far into include targets and resolving them relative to the including file.
+ */
+class AsciiDocIncludes {
+
+    static final Logger LOGGER = Logger.getLogger(AsciiDocIncludes.class);
+
+    static final int MAX_INCLUDE_DEPTH = 16;
+
+    static final Pattern ATTRIBUTE_ENTRY = Pattern.compile("^:(!?[\\w-]+!?):\\s*(.*)$");
+    private static final Pattern ATTRIBUTE_REFERENCE = Pattern.compile("\\{([\\w-]+)\\}");
+    private static final Pattern INCLUDE_DIRECTIVE = Pattern.compile("^include::(.+?)\\[.*\\]\\s*$");
+
+    /**
+     * @param file The file the content was read from, which includes are resolved against
+     * @param content The AsciiDoc content
+     * @param includedFiles Each file transitively included by the content is added to this set, in include order
+     * @return The lines of the content, with each include directive replaced by the lines of the included file
+     */
+    static List<String> expand(Path file, String content, Set<Path> includedFiles) throws IOException {
+        List<String> lines = new ArrayList<>();
+        expand(file, content, new HashMap<>(), new ArrayDeque<>(), includedFiles, new ArrayList<>(), lines);
+        return lines;
+    }
+
+    /**
+     * @param file The file the content was read from, which includes are resolved against
+     * @param content The AsciiDoc content
+     * @return The include directives, in the content or any file it transitively includes, whose target doesn't exist
+     */
+    static List<MissingInclude> findMissingIncludes(Path file, String content) throws IOException {
+        List<MissingInclude> missingIncludes = new ArrayList<>();
+        expand(file, content, new HashMap<>(), new ArrayDeque<>(), new LinkedHashSet<>(), missingIncludes, new ArrayList<>());
+        return missingIncludes;
+    }
+
+    /**
+     * @param includingFile The file holding the include directive
+     * @param target The target of the include directive, with attributes substituted
+     */
+    record MissingInclude(Path includingFile, String target) {}
+
+    static String substituteAttributes(String text, Map<String, String> attributes) {
+        return ATTRIBUTE_REFERENCE.matcher(text).replaceAll(reference ->
+            Matcher.quoteReplacement(attributes.getOrDefault(reference.group(1), "")));
+    }
+
+    private static void expand(Path file, String content, Map<String, String> attributes, Deque<Path> includeStack,
+                               Set<Path> includedFiles, List<MissingInclude> missingIncludes, List<String> lines) throws IOException {
+        includeStack.push(file.toAbsolutePath().normalize());
+        for (String line : content.lines().toList()) {
+            Matcher attributeEntry = ATTRIBUTE_ENTRY.matcher(line.strip());
+            if (attributeEntry.matches()) {
+                attributes.put(attributeEntry.group(1), attributeEntry.group(2));
+            }
+
+            Matcher include = INCLUDE_DIRECTIVE.matcher(line.strip());
+            if (!include.matches()) {
+                lines.add(line);
+                continue;
+            }
+            String target = substituteAttributes(include.group(1), attributes);
+            Path includedFile = file.resolveSibling(target).toAbsolutePath().normalize();
+            if (includeStack.size() >= MAX_INCLUDE_DEPTH || includeStack.contains(includedFile)) {
+                LOGGER.warn("Not expanding include of " + includedFile + " in " + file + " as it is nested too deeply or recursive");
+            } else if (!Files.isRegularFile(includedFile)) {
+                LOGGER.debug("Skipping missing include " + includedFile + " in " + file);
+                missingIncludes.add(new MissingInclude(file, target));
+            } else {
+                includedFiles.add(includedFile);
+                expand(includedFile, Files.readString(includedFile), attributes, includeStack, includedFiles, missingIncludes, lines);
+            }
+        }
+        includeStack.pop();
+    }
+}
+
+/**
+ * Renders the AsciiDoc pages in the content tree to HTML in-process, so Hugo publishes the rendered HTML rather than
+ * running the external {@code asciidoctor} command once per page. Pages are rendered in parallel, each by one of a few
+ * Asciidoctor runtimes, and each rendering is cached under a hash of the page and every file it transitively includes,
+ * so unchanged pages are never rendered twice.
+ * <p>
+ * The HTML is written next to each page, with the page's front matter, a {@code renderedFrom} key naming the source
+ * page and a {@code renderedToc} key holding the table of contents, which Hugo can't build for HTML content itself.
+ * A {@code renderKey} key records what the HTML was rendered from, so HTML rendered elsewhere, e.g. by a shard, is
+ * kept without needing that run's cache. Images with downscaled variants next to them (see {@link ImageOptimizer}) are
+ * given a {@code srcset} as the HTML is written. Hugo is configured to ignore the AsciiDoc files, so only the
+ * rendered HTML is published, and the Asciidoctor options set here are the only ones that apply.
+ * <p>
+ * A render fails if Asciidoctor logs a message at or above the failure level for any page. No HTML is written for
+ * those pages, and the render throws once every page has been tried, so the build fails rather than publishing the
+ * site without them.
+ */
+class AsciiDocRenderer implements AutoCloseable {
+
+    static final Logger LOGGER = Logger.getLogger(AsciiDocRenderer.class);
+
+    // Part of each cache key, so changing how pages are rendered invalidates the cache
+    static final String RENDER_VERSION = "asciidoctorj-3.0.0/2";
+    // Matches the table of contents levels in hugo.toml
+    static final int TOC_START_LEVEL = 1;
+    static final int TOC_END_LEVEL = 3;
+    // Each Asciidoctor runtime takes a lot of memory, so only a few pages are rendered at once
+    static final int MAX_RUNTIMES = Math.min(Runtime.getRuntime().availableProcessors(), 4);
+
+    /**
+     * @param html The rendered page body
+     * @param toc The table of contents, as Hugo renders it for .TableOfContents
+     */
+    record RenderedPage(String html, String toc) {}
+
+    private final Path contentRoot;
+    private final Path cacheDir;
+    private final Severity failureLevel;
+    private final ObjectMapper mapper = new ObjectMapper();
+    // The renders used in this run, so the rest can be pruned from the cache
+    private final Set<Path> usedRenders = ConcurrentHashMap.newKeySet();
+    private final LongAdder renderedPages = new LongAdder();
+    private final LongAdder cachedPages = new LongAdder();
+    private final Set<Path> failedPages = ConcurrentHashMap.newKeySet();
+    // Starting Asciidoctor's JRuby runtime takes seconds, so one is only started when a page needs rendering and none
+    // is free. A runtime renders one page at a time, as Rouge's highlighting isn't safe to run concurrently in one.
+    private final List<Asciidoctor> runtimes = new ArrayList<>();
+    private final BlockingQueue<Asciidoctor> idleRuntimes = new LinkedBlockingQueue<>();
+    // The messages each runtime has logged for the page it is rendering
+    private final Map<Asciidoctor, List<LogRecord>> runtimeMessages = new ConcurrentHashMap<>();
+
+    /**
+     * @param failureLevel The least severe Asciidoctor message which fails the render of a page
+     */
+    AsciiDocRenderer(Path contentRoot, Path cacheDir, Severity failureLevel) {
+        this.contentRoot = contentRoot;
+        this.cacheDir = cacheDir;
+        this.failureLevel = failureLevel;
+    }
+
+    /**
+     * Renders every AsciiDoc page under the content root, removes the HTML for pages which no longer exist, and prunes
+     * the cache of renders which weren't needed. The HTML files written or removed are recorded in {@code changes}.
+     * This can be called again to re-render after the content has changed, reusing the Asciidoctor runtime.
+     *
+     * @throws IOException If a page can't be read or written, or fails to render at the failure level
+     */
+    void renderAll(ChangeManifest changes) throws IOException {
+        render(List.of(contentRoot), changes);
+        prune();
+    }
+
+    /**
+     * Renders the AsciiDoc pages under the given folders of the content root, e.g. those synced by one shard, and
+     * removes the HTML for pages in them which no longer exist. The cache isn't pruned, as it's only known which
+     * renders are unused once every page has been rendered.
+     *
+     * @throws IOException If a page can't be read or written, or fails to render at the failure level
+     */
+    void renderFolders(Collection<Path> folders, ChangeManifest changes) throws IOException {
+        render(folders, changes);
+    }
+
+    private void render(Collection<Path> folders, ChangeManifest changes) throws IOException {
+        usedRenders.clear();
+        renderedPages.reset();
+        cachedPages.reset();
+        failedPages.clear();
+
+        List<Path> pages = new ArrayList<>();
+        for (Path folder : folders) {
+            removeOrphanedPages(folder, changes);
+            if (Files.isDirectory(folder)) {
+                FileTools.findPageFiles(folder).stream()
+                    .filter(file -> file.getFileName().toString().endsWith(".adoc"))
+                    .forEach(pages::add);
+            }
+        }
+        // Rendering is CPU bound, so the common pool's one thread per core is the right parallelism
+        pages.parallelStream().forEach(page -> {
+            try {
+                renderPage(page, changes);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to render " + page, e);
+            }
+        });
+
+        LOGGER.info("Rendered " + pages.size() + " AsciiDoc pages, " + renderedPages.sum() + " rendered and "
+            + cachedPages.sum() + " unchanged since they were last rendered");
+        if (!failedPages.isEmpty()) {
+            throw new IOException(failedPages.size() + " AsciiDoc pages failed to render with messages at or above "
+                + failureLevel + ": " + new TreeSet<>(failedPages));
+        }
+    }
+
+    private void renderPage(Path page, ChangeManifest changes) throws IOException {
+        ContentFile content = ContentFile.read(page);
+        Set<Path> includedFiles = new LinkedHashSet<>();
+        AsciiDocIncludes.expand(page, content.body(), includedFiles);
+
+        String renderKey = renderKey(page, content.body(), includedFiles);
+        Path cachePath = cachePath(renderKey);
+        usedRenders.add(cachePath);
+
+        // The HTML records what it was rendered from, so a page rendered by another run (e.g. a shard of this one)
+        // is left alone without needing that run's render cache
+        Path htmlPath = page.resolveSibling(FileTools.baseName(page.getFileName().toString()) + ".html");
+        if (Files.isRegularFile(htmlPath)) {
+            ContentFile existingHtml = ContentFile.read(htmlPath);
+            String existingKey = htmlKey(renderKey, content.frontMatter(), ImageOptimizer.srcsets(page.getParent(), existingHtml.body()));
+            if (existingKey.equals(existingHtml.frontMatterValues().get("renderKey"))) {
+                cachedPages.increment();
+                return;
+            }
+        }
+
+        RenderedPage rendered;
+        if (Files.isRegularFile(cachePath)) {
+            rendered = mapper.readValue(cachePath.toFile(), RenderedPage.class);
+            cachedPages.increment();
+        } else {
+            LOGGER.debug("Rendering " + page);
+            rendered = render(page, content.body());
+            if (rendered == null) {
+                failedPages.add(page);
+                return;
+            }
+            Files.createDirectories(cachePath.getParent());
+            Path tempPath = Files.createTempFile(cachePath.getParent(), cachePath.getFileName().toString(), ".tmp");
+            try {
+                mapper.writeValue(tempPath.toFile(), rendered);
+                Files.move(tempPath, cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempPath);
+            }
+            renderedPages.increment();
+        }
+
+        // The images' variants can change without the page changing, so their srcsets are added to each write
+        Map<String, String> srcsets = ImageOptimizer.srcsets(page.getParent(), rendered.html());
+        String htmlKey = htmlKey(renderKey, content.frontMatter(), srcsets);
+        String html = withRenderFrontMatter(content.frontMatter(), page.getFileName().toString(), htmlKey, rendered.toc())
+            + ImageOptimizer.withSrcsets(rendered.html(), srcsets);
+        // Leave unchanged output alone, so Hugo's server doesn't see a change
+        if (!Files.isRegularFile(htmlPath)) {
+            Files.writeString(htmlPath, html);
+            changes.added(htmlPath);
+        } else if (!Files.readString(htmlPath).equals(html)) {
+            Files.writeString(htmlPath, html);
+            changes.modified(htmlPath);
+        }
+    }
+
+    private static String htmlKey(String renderKey, String frontMatter, Map<String, String> srcsets) {
+        return FileTools.sha256(renderKey + "\0" + frontMatter + "\0" + srcsets);
+    }
+
+    private String renderKey(Path page, String body, Set<Path> includedFiles) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((RENDER_VERSION + "\0" + body).getBytes(StandardCharsets.UTF_8));
+            for (Path includedFile : includedFiles) {
+                // The include's location matters as well as its content, as its own includes are resolved against it
+                digest.update(("\0" + page.getParent().toAbsolutePath().normalize().relativize(includedFile) + "\0").getBytes(StandardCharsets.UTF_8));
+                digest.update(Files.readAllBytes(includedFile));
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private Path cachePath(String key) {
+        return cacheDir.resolve(key.substring(0, 2)).resolve(key + ".json");
+    }
+
+    /**
+     * Renders a page to an HTML fragment, highlighting source blocks with Rouge, and applies the failure level to the
+     * messages logged while rendering.
+     *
+     * @return The rendered page, or null if a message at or above the failure level was logged
+     */
+    private RenderedPage render(Path page, String body) {
+        Options options = Options.builder()
+            .backend("html5")
+            .safe(SafeMode.UNSAFE)
+            .standalone(false)
+            .baseDir(page.getParent().toFile())
+            .attributes(Attributes.builder().sourceHighlighter("rouge").build())
+            .build();
+        Asciidoctor asciidoctor = acquireRuntime();
+        List<LogRecord> messages = runtimeMessages.get(asciidoctor);
+        messages.clear();
+        try {
+            Document document = asciidoctor.load(body, options);
+            String html = document.convert();
+            if (!logMessages(page, messages)) {
+                return null;
+            }
+
+            StringBuilder toc = new StringBuilder();
+            appendTableOfContents(document, toc);
+            return new RenderedPage(html, toc.isEmpty() ? "" : "<nav id=\"TableOfContents\">" + toc + "</nav>");
+        } finally {
+            idleRuntimes.add(asciidoctor);
+        }
+    }
+
+    /**
+     * Logs the messages Asciidoctor logged while rendering a page.
+     *
+     * @return False if any of them is at or above the failure level
+     */
+    private boolean logMessages(Path page, List<LogRecord> messages) {
+        boolean passed = true;
+        for (LogRecord message : messages) {
+            Cursor cursor = message.getCursor();
+            String location = cursor == null ? page.toString()
+                : (cursor.getFile() != null ? cursor.getFile() : page.toString()) + ":" + cursor.getLineNumber();
+            String text = "Asciidoctor " + message.getSeverity() + " in " + location + ": " + message.getMessage();
+            if (message.getSeverity().compareTo(failureLevel) >= 0) {
+                LOGGER.error(text);
+                passed = false;
+            } else if (message.getSeverity().compareTo(Severity.WARN) >= 0) {
+                LOGGER.warn(text);
+            } else {
+                LOGGER.debug(text);
+            }
+        }
+        return passed;
+    }
+
+    /**
+     * Shuts down the Asciidoctor runtimes which were started.
+     */
+    @Override
+    public synchronized void close() {
+        runtimes.forEach(Asciidoctor::shutdown);
+        runtimes.clear();
+        idleRuntimes.clear();
+        runtimeMessages.clear();
+    }
+
+    private Asciidoctor acquireRuntime() {
+        Asciidoctor asciidoctor = idleRuntimes.poll();
+        if (asciidoctor != null) {
+            return asciidoctor;
+        }
+        synchronized (this) {
+            if (runtimes.size() < MAX_RUNTIMES) {
+                asciidoctor = Asciidoctor.Factory.create();
+                // A runtime only renders one page at a time, so everything it logs is about that page
+                List<LogRecord> messages = new ArrayList<>();
+                asciidoctor.registerLogHandler(messages::add);
+                runtimeMessages.put(asciidoctor, messages);
+                runtimes.add(asciidoctor);
+                return asciidoctor;
+            }
+        }
+        try {
+            return idleRuntimes.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for an Asciidoctor runtime", e);
+        }
+    }
+
+    private static void appendTableOfContents(StructuralNode node, StringBuilder toc) {
+        List<Section> sections = node.getBlocks().stream()
+            .filter(block -> block instanceof Section)
+            .map(block -> (Section) block)
+            .toList();
+        if (sections.isEmpty()) {
+            return;
+        }
+
+        boolean listed = sections.get(0).getLevel() >= TOC_START_LEVEL && sections.get(0).getLevel() <= TOC_END_LEVEL;
+        if (listed) {
+            toc.append("<ul>");
+        }
+        for (Section section : sections) {
+            if (listed) {
+                toc.append("<li><a href=\"#").append(section.getId()).append("\">").append(section.getTitle()).append("</a>");
+            }
+            appendTableOfContents(section, toc);
+            if (listed) {
+                toc.append("</li>");
+            }
+        }
+        if (listed) {
+            toc.append("</ul>");
+        }
+    }
+
+    // Adds the render keys at the top of the front matter, ahead of any TOML tables
+    private String withRenderFrontMatter(String frontMatter, String sourceFileName, String renderKey, String toc) throws IOException {
+        String delimiter = frontMatter.startsWith("---") ? "---" : "+++";
+        String separator = delimiter.equals("---") ? ": " : " = ";
+        // A JSON string is also a valid TOML basic string and YAML double quoted string
+        String renderKeys = "renderedFrom" + separator + mapper.writeValueAsString(sourceFileName) + "\n"
+            + "renderKey" + separator + mapper.writeValueAsString(renderKey) + "\n"
+            + "renderedToc" + separator + mapper.writeValueAsString(toc) + "\n";
+        if (frontMatter.isEmpty()) {
+            return delimiter + "\n" + renderKeys + delimiter + "\n";
+        }
+        int firstLineEnd = frontMatter.indexOf('\n') + 1;
+        return frontMatter.substring(0, firstLineEnd) + renderKeys + frontMatter.substring(firstLineEnd) + "\n";
+    }
+
+    private void removeOrphanedPages(Path folder, ChangeManifest changes) throws IOException {
+        if (!Files.isDirectory(folder)) {
+            return;
+        }
+        List<Path> htmlFiles;
+        try (Stream<Path> files = Files.walk(folder)) {
+            htmlFiles = files.filter(file -> file.getFileName().toString().endsWith(".html")).toList();
+        }
+        for (Path htmlFile : htmlFiles) {
+            String renderedFrom = ContentFile.read(htmlFile).frontMatterValues().get("renderedFrom");
+            if (renderedFrom != null && !Files.exists(htmlFile.resolveSibling(renderedFrom))) {
+                LOGGER.info("Removing " + htmlFile + " as " + renderedFrom + " no longer exists");
+                Files.delete(htmlFile);
+                changes.removed(htmlFile);
+            }
+        }
+    }
+
+    private void prune() throws IOException {
+        if (!Files.isDirectory(cacheDir)) {
+            return;
+        }
+        List<Path> unusedRenders;
+        try (Stream<Path> files = Files.walk(cacheDir)) {
+            unusedRenders = files
+                .filter(Files::isRegularFile)
+                .filter(file -> !usedRenders.contains(file))
+                .toList();
+        }
+        for (Path unusedRender : unusedRenders) {
+            Files.delete(unusedRender);
+        }
+        LOGGER.debug("Pruned " + unusedRenders.size() + " unused renders from " + cacheDir);
+    }
+}
+
+/**
+ * Builds the site search index from the content tree. Every page's title and text is tokenized into an inverted index
+ * of term to posting list, which is split into shards by the first characters of each term, so the search box only
+ * needs to load the shards for the words in a query rather than the text of every page on the site.
+ * <p>
+ * The output directory holds {@code index.json}, listing the indexed pages, and a {@code terms/<shard>.json} file for
+ * each shard, mapping each of its terms to the {@code [page, title occurrences, body occurrences]} postings for the term.
+ * Pages are found the way Hugo finds them: files inside a leaf bundle (a directory holding an {@code index} file) are
+ * resources of that bundle rather than pages, and AsciiDoc includes are expanded into the including page.
+ */
+class SearchIndexer {
+
+    static final Logger LOGGER = Logger.getLogger(SearchIndexer.class);
+
+    static final int MIN_TERM_LENGTH = 2;
+    static final int MAX_TERM_LENGTH = 32;
+    static final int SHARD_PREFIX_LENGTH = 2;
+    static final int SUMMARY_LENGTH = 240;
+
+    private static final Pattern TERM_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final Pattern BLOCK_MACRO = Pattern.compile("^[a-z]+::.*\\[.*\\]\\s*$");
+    private static final Pattern BLOCK_DELIMITER = Pattern.compile("^(-{4,}|={4,}|\\*{4,}|\\.{4,}|_{4,}|\\+{4,}|`{3,}.*|~{3,}.*)$");
+    private static final Pattern BLOCK_ATTRIBUTES = Pattern.compile("^\\[.*\\]$");
+    private static final Pattern LINE_MARKER = Pattern.compile("^(=+|#+|[-*+.]+|\\d+\\.|\\|)\\s+");
+    private static final Pattern MARKUP = Pattern.compile(
+        "\\{\\{[<%].*?[>%]\\}\\}" +                                                    // Hugo shortcodes
+        "|<[^>]+>" +                                                                   // HTML tags
+        "|\\]\\([^)]*\\)" +                                                            // Markdown link targets
+        "|(?:https?://|link:|xref:|mailto:|image:|kbd:|btn:|menu:)[^\\s\\[\\]]*" +     // URLs and AsciiDoc inline macros
+        "|[\\[\\]*`|^]");                                                              // Brackets and inline formatting
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    /**
+     * A page in the index, as shown in the search results.
+     *
+     * @param href The site relative URL of the page
+     * @param title The title of the page
+     * @param section The title of the section the page is in
+     * @param project The first segment of the page's URL, or {@code home} for the home page
+     * @param group The sub-section of the project the page is in, such as {@code Documentation}, or empty
+     * @param version The documentation version the page is part of, or null if it isn't versioned documentation
+     * @param summary The start of the page's text
+     */
+    record SearchDocument(String href, String title, String section, String project, String group, String version, String summary) {}
+
+    private record IndexedPage(SearchDocument document, Map<String, Integer> titleTerms, Map<String, Integer> bodyTerms) {}
+
+    private final Path contentRoot;
+    private final Map<Path, String> versionDirectories;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * @param contentRoot The Hugo content directory
+     * @param versionDirectories The directories holding each version of each source's documentation, and the version
+     *                           each one holds
+     */
+    SearchIndexer(Path contentRoot, Map<Path, String> versionDirectories) {
+        this.contentRoot = contentRoot.toAbsolutePath().normalize();
+        this.versionDirectories = new HashMap<>();
+        versionDirectories.forEach((directory, version) ->
+            this.versionDirectories.put(directory.toAbsolutePath().normalize(), version));
+    }
+
+    /**
+     * Indexes every page under the content root, replacing any index already in {@code outputDir}.
+     */
+    void writeIndex(Path outputDir) throws IOException {
+        List<Path> pageFiles = FileTools.findPageFiles(contentRoot);
+
+        List<IndexedPage> pages = pageFiles.parallelStream()
+            .map(this::indexPage)
+            .filter(Objects::nonNull)
+            .sorted(Comparator.comparing(page -> page.document().href()))
+            .toList();
+
+        // Postings are added in page order, so each posting list is sorted by page id
+        Map<String, Map<String, List<int[]>>> shards = new TreeMap<>();
+        for (int pageId = 0; pageId < pages.size(); pageId++) {
+            IndexedPage page = pages.get(pageId);
+            Set<String> terms = new TreeSet<>(page.titleTerms().keySet());
+            terms.addAll(page.bodyTerms().keySet());
+            for (String term : terms) {
+                shards.computeIfAbsent(shardName(term), key -> new TreeMap<>())
+                    .computeIfAbsent(term, key -> new ArrayList<>())
+                    .add(new int[] {pageId, page.titleTerms().getOrDefault(term, 0), page.bodyTerms().getOrDefault(term, 0)});
+            }
+        }
+
+        if (Files.exists(outputDir)) {
+            org.apache.commons.io.FileUtils.deleteDirectory(outputDir.toFile());
+        }
+        Path termsDir = Files.createDirectories(outputDir.resolve("terms"));
+        mapper.writeValue(outputDir.resolve("index.json").toFile(),
+            Map.of("documents", pages.stream().map(IndexedPage::document).toList()));
+        for (Map.Entry<String, Map<String, List<int[]>>> shard : shards.entrySet()) {
+            mapper.writeValue(termsDir.resolve(shard.getKey() + ".json").toFile(), shard.getValue());
+        }
+
+        LOGGER.info("Wrote search index of " + pages.size() + " pages in " + shards.size() + " shards to " + outputDir);
+    }
+
+    /**
+     * The shard a term is stored in, named after its leading characters. Characters other than lower case ASCII
+     * letters and digits are written as {@code _} followed by their hex UTF-16 code, so the name is safe to use as a
+     * file name. This must match the shard lookup in {@code assets/search.js}.
+     */
+    static String shardName(String term) {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < Math.min(SHARD_PREFIX_LENGTH, term.length()); i++) {
+            char c = term.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+                name.append(c);
+            } else {
+                name.append('_').append(Integer.toHexString(c));
+            }
+        }
+        return name.toString();
+    }
+
+    /**
+     * Counts the searchable terms in some text. This must match the query tokenizing in {@code assets/search.js}.
+     */
+    static Map<String, Integer> terms(String text) {
+        Map<String, Integer> terms = new HashMap<>();
+        for (String term : TERM_SEPARATOR.split(text.toLowerCase(Locale.ROOT))) {
+            if (term.length() >= MIN_TERM_LENGTH && term.length() <= MAX_TERM_LENGTH) {
+                terms.merge(term, 1, Integer::sum);
+            }
+        }
+        return terms;
+    }
+
+    private IndexedPage indexPage(Path file) {
+        try {
+            ContentFile content = ContentFile.read(file);
+            Map<String, String> frontMatter = content.frontMatterValues();
+            if (Boolean.parseBoolean(frontMatter.get("draft"))
+                || Boolean.parseBoolean(frontMatter.get("headless"))
+                || Boolean.parseBoolean(frontMatter.get("bookSearchExclude"))) {
+                return null;
+            }
+
+            boolean asciidoc = file.getFileName().toString().endsWith(".adoc");
+            List<String> lines = new ArrayList<>();
+            if (asciidoc) {
+                lines.addAll(AsciiDocIncludes.expand(file, content.body(), new LinkedHashSet<>()));
+            } else {
+                content.body().lines().forEach(lines::add);
+            }
+
+            String heading = null;
+            StringBuilder text = new StringBuilder();
+            Map<String, String> attributes = new HashMap<>();
+            boolean inComment = false;
+            for (String line : lines) {
+                String trimmed = line.strip();
+                if (asciidoc && trimmed.equals("////")) {
+                    inComment = !inComment;
+                    continue;
+                }
+                if (inComment || (asciidoc && trimmed.startsWith("//"))) {
+                    continue;
+                }
+                Matcher attributeEntry = AsciiDocIncludes.ATTRIBUTE_ENTRY.matcher(trimmed);
+                if (asciidoc && attributeEntry.matches()) {
+                    attributes.put(attributeEntry.group(1), attributeEntry.group(2));
+                    continue;
+                }
+                if (BLOCK_DELIMITER.matcher(trimmed).matches()
+                    || BLOCK_ATTRIBUTES.matcher(trimmed).matches()
+                    || BLOCK_MACRO.matcher(trimmed).matches()) {
+                    continue;
+                }
+                if (heading == null && (trimmed.startsWith("= ") || trimmed.startsWith("# "))) {
+                    heading = plainText(trimmed.substring(2), attributes);
+                    continue;
+                }
+                String plain = plainText(LINE_MARKER.matcher(trimmed).replaceFirst(""), attributes);
+                if (!plain.isEmpty()) {
+                    text.append(plain).append(' ');
+                }
+            }
+
+            String href = href(file, frontMatter);
+            String body = text.toString().strip();
+            if (body.isEmpty()) {
+                return null;
+            }
+            String title = frontMatter.getOrDefault("title", heading != null ? heading : humanize(pageName(file)));
+
+            SearchDocument document = new SearchDocument(
+                href,
+                title,
+                sectionTitle(file),
+                project(href),
+                group(href, frontMatter.get("category")),
+                version(file),
+                summary(body));
+            return new IndexedPage(document, terms(title), terms(body));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to index " + file, e);
+        }
+    }
+
+    private static String plainText(String line, Map<String, String> attributes) {
+        String text = MARKUP.matcher(AsciiDocIncludes.substituteAttributes(line, attributes)).replaceAll(" ");
+        return WHITESPACE.matcher(text).replaceAll(" ").strip();
+    }
+
+    private static String summary(String body) {
+        if (body.length() <= SUMMARY_LENGTH) {
+            return body;
+        }
+        int end = body.lastIndexOf(' ', SUMMARY_LENGTH);
+        return body.substring(0, end > 0 ? end : SUMMARY_LENGTH);
+    }
+
+    // The name Hugo gives the page: its file name, or its directory's name for index files
+    private String pageName(Path file) {
+        String baseName = FileTools.baseName(file.getFileName().toString());
+        if (baseName.equals("index") || baseName.equals("_index")) {
+            Path directory = file.getParent();
+            return directory.equals(contentRoot) ? "" : directory.getFileName().toString();
+        }
+        return baseName;
+    }
+
+    // The URL Hugo publishes the page at, following the url and slug front matter
+    private String href(Path file, Map<String, String> frontMatter) {
+        if (frontMatter.containsKey("url")) {
+            String url = frontMatter.get("url");
+            return (url.startsWith("/") ? "" : "/") + url + (url.endsWith("/") ? "" : "/");
+        }
+        Path relativePath = contentRoot.relativize(file);
+        List<String> segments = new ArrayList<>();
+        for (int i = 0; i < relativePath.getNameCount() - 1; i++) {
+            segments.add(relativePath.getName(i).toString());
+        }
+        String baseName = FileTools.baseName(file.getFileName().toString());
+        if (!baseName.equals("index") && !baseName.equals("_index")) {
+            segments.add(baseName);
+        }
+        if (frontMatter.containsKey("slug") && !segments.isEmpty()) {
+            segments.set(segments.size() - 1, frontMatter.get("slug"));
+        }
+        return segments.isEmpty() ? "/" : "/" + String.join("/", segments).replace(' ', '-') + "/";
+    }
+
+    // The title of the section holding the page, taken from the nearest branch bundle above it
+    private String sectionTitle(Path file) throws IOException {
+        Path directory = file.getParent();
+        String baseName = FileTools.baseName(file.getFileName().toString());
+        if (baseName.equals("index") || baseName.equals("_index")) {
+            directory = directory.getParent();
+        }
+        for (; directory != null && directory.startsWith(contentRoot); directory = directory.getParent()) {
+            for (String sectionFile : List.of("_index.md", "_index.adoc")) {
+                Path sectionPath = directory.resolve(sectionFile);
+                if (Files.isRegularFile(sectionPath)) {
+                    String title = ContentFile.read(sectionPath).frontMatterValues().get("title");
+                    return title != null ? title : humanize(pageName(sectionPath));
+                }
+            }
+        }
+        return "";
+    }
+
+    private static String project(String href) {
+        String[] segments = href.substring(1).split("/");
+        return segments.length > 0 && !segments[0].isEmpty() ? segments[0] : "home";
+    }
+
+    private static String group(String href, String category) {
+        if (href.contains("/docs/")) {
+            return "Documentation";
+        } else if (href.contains("/quick-start/")) {
+            return "Quick Start";
+        } else if (category != null && !category.isEmpty()) {
+            return WordUtils.capitalize(category);
+        }
+        return "";
+    }
+
+    private String version(Path file) {
+        for (Path directory = file.getParent(); directory != null && directory.startsWith(contentRoot); directory = directory.getParent()) {
+            String version = versionDirectories.get(directory);
+            if (version != null) {
+                return version;
+            }
+        }
+        return null;
+    }
+
+    private static String humanize(String name) {
+        return name.isEmpty() ? "" : WordUtils.capitalize(name.replace('-', ' ').replace('_', ' '));
+    }
+}
+
+/**
+ * Checks that the links, images and includes in the content tree resolve, so broken references fail the build before
+ * Hugo runs rather than part way through it. One parallel pass over the content and static directories indexes every
+ * file, along with the element ids (i.e. the section anchors) of each HTML page, and collects the references made by
+ * each page. Every reference is then checked against the in-memory index, so no file is read more than once however
+ * many versions of the docs link to each other.
+ * <p>
+ * The references checked are the {@code href} and {@code src} attributes of HTML pages, which include the pages
+ * rendered from AsciiDoc (see {@link AsciiDocRenderer}), the link and image targets of Markdown pages, and the include
+ * directives of AsciiDoc pages. External URLs aren't checked. Anchors are only checked on HTML pages, as Hugo generates
+ * the heading ids of Markdown pages itself. Each docs version directory must also hold an index page, which the
+ * source's contents page links to.
+ */
+class LinkValidator {
+
+    static final Logger LOGGER = Logger.getLogger(LinkValidator.class);
+
+    private static final Pattern HTML_REFERENCE = Pattern.compile("\\s(?:href|src)=\"([^\"]*)\"");
+    private static final Pattern HTML_ANCHOR = Pattern.compile("\\s(?:id|name)=\"([^\"]+)\"");
+    private static final Pattern MARKDOWN_REFERENCE = Pattern.compile("\\]\\(\\s*<?([^)\\s>]+)");
+    private static final Pattern EXTERNAL = Pattern.compile("^(?:[a-zA-Z][a-zA-Z0-9+.-]*:|//)");
+    private static final Pattern UNRESOLVED_ATTRIBUTE = Pattern.compile("\\{[\\w-]+\\}");
+    private static final List<String> INDEX_PAGES = List.of("index.html", "_index.html", "index.md", "_index.md", "index.adoc", "_index.adoc");
+    private static final List<String> PAGE_EXTENSIONS = List.of(".html", ".md", ".adoc");
+
+    /**
+     * A reference which doesn't resolve.
+     *
+     * @param page The page, or included file, making the reference
+     * @param reference The reference as written in the page
+     * @param reason Why the reference doesn't resolve
+     */
+    record Problem(Path page, String reference, String reason) {}
+
+    /**
+     * @param anchors The element ids of an HTML file, or null for other files
+     * @param references The links made by a page, or empty for other files
+     * @param problems The problems found while reading the file, i.e. its missing includes
+     */
+    private record ScannedFile(Path file, Set<String> anchors, List<String> references, List<Problem> problems) {}
+
+    private final Path contentRoot;
+    private final Path staticRoot;
+    private final Map<Path, String> refDirectories;
+    private final Set<Path> files = new HashSet<>();
+    private final Map<Path, Set<String>> anchors = new HashMap<>();
+
+    /**
+     * @param contentRoot The Hugo content directory
+     * @param staticRoot The Hugo static directory, which site relative links may also point into
+     * @param refDirectories The directories holding each version of each source's documentation, and the source and
+     *                       ref each one holds, which problems are grouped by
+     */
+    LinkValidator(Path contentRoot, Path staticRoot, Map<Path, String> refDirectories) {
+        this.contentRoot = contentRoot.toAbsolutePath().normalize();
+        this.staticRoot = staticRoot.toAbsolutePath().normalize();
+        this.refDirectories = new HashMap<>();
+        refDirectories.forEach((directory, ref) -> this.refDirectories.put(directory.toAbsolutePath().normalize(), ref));
+    }
+
+    /**
+     * Indexes the content and static directories and checks every reference in the content against them, logging the
+     * problems found grouped by source and ref.
+     *
+     * @return The problems found, sorted by page
+     */
+    List<Problem> validate() throws IOException {
+        long start = System.nanoTime();
+        List<Path> allFiles = new ArrayList<>();
+        for (Path root : List.of(contentRoot, staticRoot)) {
+            if (Files.isDirectory(root)) {
+                try (Stream<Path> walk = Files.walk(root)) {
+                    walk.filter(Files::isRegularFile).map(file -> file.toAbsolutePath().normalize()).forEach(allFiles::add);
+                }
+            }
+        }
+
+        // Reading and scanning the pages is CPU bound, so the common pool's one thread per core is the right parallelism
+        List<ScannedFile> scannedFiles = allFiles.parallelStream().map(this::scan).toList();
+        files.addAll(allFiles);
+        List<Problem> problems = new ArrayList<>();
+        for (ScannedFile scannedFile : scannedFiles) {
+            if (scannedFile.anchors() != null) {
+                anchors.put(scannedFile.file(), scannedFile.anchors());
+            }
+            problems.addAll(scannedFile.problems());
+        }
+
+        // Every file is indexed before any reference is checked, as pages link to each other in both directions
+        problems.addAll(scannedFiles.parallelStream()
+            .flatMap(scannedFile -> scannedFile.references().stream()
+                .map(reference -> check(scannedFile.file(), reference))
+                .filter(Objects::nonNull))
+            .toList());
+
+        for (Path refDirectory : refDirectories.keySet()) {
+            if (!Files.isDirectory(refDirectory) || FileTools.findIndexFiles(refDirectory).isEmpty()) {
+                problems.add(new Problem(refDirectory, "", "no index.adoc or index.md page"));
+            }
+        }
+
+        List<Problem> sortedProblems = problems.stream()
+            .distinct()
+            .sorted(Comparator.comparing(Problem::page).thenComparing(Problem::reference))
+            .toList();
+        long references = scannedFiles.stream().mapToLong(scannedFile -> scannedFile.references().size()).sum();
+        LOGGER.info("Checked " + references + " references against " + allFiles.size() + " files and "
+            + anchors.values().stream().mapToInt(Set::size).sum() + " anchors in "
+            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms, found " + sortedProblems.size() + " problems");
+        logProblems(sortedProblems);
+        return sortedProblems;
+    }
+
+    private void logProblems(List<Problem> problems) {
+        Map<String, List<Problem>> problemsByRef = new TreeMap<>();
+        for (Problem problem : problems) {
+            problemsByRef.computeIfAbsent(ref(problem.page()), key -> new ArrayList<>()).add(problem);
+        }
+        problemsByRef.forEach((ref, refProblems) -> {
+            LOGGER.warn(ref + ": " + refProblems.size() + " problems");
+            for (Problem problem : refProblems) {
+                LOGGER.warn("  " + contentRoot.relativize(problem.page())
+                    + (problem.reference().isEmpty() ? "" : ": " + problem.reference()) + " - " + problem.reason());
+            }
+        });
+    }
+
+    /**
+     * @return The source and ref the file belongs to, or {@code site} if it isn't part of any source's documentation
+     */
+    private String ref(Path file) {
+        for (Path directory = file; directory != null && directory.startsWith(contentRoot); directory = directory.getParent()) {
+            String ref = refDirectories.get(directory);
+            if (ref != null) {
+                return ref;
+            }
+        }
+        return "site";
+    }
+
+    private ScannedFile scan(Path file) {
+        String fileName = file.getFileName().toString();
+        boolean html = fileName.endsWith(".html");
+        boolean markdown = fileName.endsWith(".md");
+        boolean asciidoc = fileName.endsWith(".adoc");
+        if (!file.startsWith(contentRoot) || !(html || markdown || asciidoc)) {
+            return new ScannedFile(file, null, List.of(), List.of());
+        }
+        boolean page = FileTools.isPage(file, contentRoot);
+        if (!page && !html) {
+            return new ScannedFile(file, null, List.of(), List.of());
+        }
+
+        try {
+            ContentFile content = ContentFile.read(file);
+            Set<String> fileAnchors = null;
+            List<String> references = new ArrayList<>();
+            List<Problem> problems = new ArrayList<>();
+            if (html) {
+                fileAnchors = new HashSet<>();
+                Matcher anchor = HTML_ANCHOR.matcher(content.body());
+                while (anchor.find()) {
+                    fileAnchors.add(unescape(anchor.group(1)));
+                }
+                if (page) {
+                    Matcher reference = HTML_REFERENCE.matcher(content.body());
+                    while (reference.find()) {
+                        references.add(unescape(reference.group(1)));
+                    }
+                }
+            } else if (markdown) {
+                Matcher reference = MARKDOWN_REFERENCE.matcher(content.body());
+                while (reference.find()) {
+                    references.add(reference.group(1));
+                }
+            } else {
+                for (AsciiDocIncludes.MissingInclude include : AsciiDocIncludes.findMissingIncludes(file, content.body())) {
+                    problems.add(new Problem(include.includingFile().toAbsolutePath().normalize(),
+                        "include::" + include.target() + "[]", "no such file"));
+                }
+            }
+            return new ScannedFile(file, fileAnchors, references, problems);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read " + file, e);
+        }
+    }
+
+    /**
+     * @return The problem with a reference made by a page, or null if the reference resolves or can't be checked
+     */
+    private Problem check(Path page, String reference) {
+        if (reference.contains("{{")) {
+            // A Hugo template or shortcode, which Hugo checks itself
+            return null;
+        }
+        if (page.getFileName().toString().endsWith(".html") && UNRESOLVED_ATTRIBUTE.matcher(reference).find()) {
+            return new Problem(page, reference, "unresolved AsciiDoc attribute");
+        }
+        if (reference.isEmpty() || EXTERNAL.matcher(reference).find()) {
+            return null;
+        }
+
+        String path = reference;
+        String anchor = null;
+        int anchorStart = path.indexOf('#');
+        if (anchorStart >= 0) {
+            anchor = path.substring(anchorStart + 1);
+            path = path.substring(0, anchorStart);
+        }
+        int queryStart = path.indexOf('?');
+        if (queryStart >= 0) {
+            path = path.substring(0, queryStart);
+        }
+
+        Path target;
+        try {
+            path = URLDecoder.decode(path.replace("+", "%2B"), StandardCharsets.UTF_8);
+            if (path.isEmpty()) {
+                target = page;
+            } else if (path.startsWith("/")) {
+                String sitePath = path.substring(1);
+                target = resolve(contentRoot.resolve(sitePath).normalize());
+                if (target == null) {
+                    target = resolve(staticRoot.resolve(sitePath).normalize());
+                }
+            } else {
+                target = resolve(pageDirectory(page).resolve(path).normalize());
+            }
+        } catch (IllegalArgumentException e) {
+            return new Problem(page, reference, "malformed path");
+        }
+        if (target == null) {
+            return new Problem(page, reference, "no such page or file");
+        }
+
+        Set<String> targetAnchors = anchors.get(target);
+        if (anchor != null && !anchor.isEmpty() && targetAnchors != null
+            && !targetAnchors.contains(URLDecoder.decode(anchor.replace("+", "%2B"), StandardCharsets.UTF_8))) {
+            return new Problem(page, reference, "no such anchor in " + contentRoot.relativize(target));
+        }
+        return null;
+    }
+
+    /**
+     * @return The file a path refers to, which may be a file, a directory holding an index page or a page named
+     *         without its extension, or null if there's no such file
+     */
+    private Path resolve(Path path) {
+        if (files.contains(path)) {
+            return path;
+        }
+        for (String indexPage : INDEX_PAGES) {
+            if (files.contains(path.resolve(indexPage))) {
+                return path.resolve(indexPage);
+            }
+        }
+        if (path.getFileName() != null) {
+            for (String extension : PAGE_EXTENSIONS) {
+                Path pageFile = path.resolveSibling(path.getFileName() + extension);
+                if (files.contains(pageFile)) {
+                    return pageFile;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The directory relative links in a page are resolved against, which is the page's URL: its directory
+     *         for an index page, or its directory plus its name otherwise
+     */
+    private static Path pageDirectory(Path page) {
+        String baseName = FileTools.baseName(page.getFileName().toString());
+        return baseName.equals("index") || baseName.equals("_index") ? page.getParent() : page.getParent().resolve(baseName);
+    }
+
+    private static String unescape(String attributeValue) {
+        return attributeValue.replace("&amp;", "&").replace("&quot;", "\"").replace("&#39;", "'");
+    }
+}
+
+/**
+ * Splits the refs of all sources into work units and deterministically assigns them to shards, so the syncing and
+ * rendering can be spread over several CI nodes before a merge step puts the site back together. Units are balanced
+ * by their weight in the last run, i.e. the number and size of the files in their output folder, which the merge step
+ * records for next time. Every shard works out the same plan, as long as they share the same sources and weights.
+ */
+class Sharding {
+
+    static final Logger LOGGER = Logger.getLogger(Sharding.class);
+
+    // The folder of the cache directory each shard writes its manifest to, and the merge step reads them from
+    static final String SHARDS_DIR = "shards";
+    // Each file costs about as much as this many bytes, on top of its size, as it's a request of its own
+    static final long FILE_WEIGHT_BYTES = 16 * 1024;
+
+    /**
+     * @param index The shard, from 1 to {@code count}
+     * @param count The number of shards
+     */
+    record Shard(int index, int count) {
+
+        /**
+         * @param spec The shard as {@code <index>/<count>}, e.g. {@code 2/4}
+         * @throws IllegalArgumentException If the spec isn't valid
+         */
+        static Shard parse(String spec) {
+            Matcher matcher = Pattern.compile("(\\d+)/(\\d+)").matcher(spec.trim());
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Shard " + spec + " should be <index>/<count>, e.g. 2/4");
+            }
+            int index = Integer.parseInt(matcher.group(1));
+            int count = Integer.parseInt(matcher.group(2));
+            if (count < 1 || index < 1 || index > count) {
+                throw new IllegalArgumentException("Shard " + spec + " should have an index between 1 and " + count);
+            }
+            return new Shard(index, count);
+        }
+
+        String fileName() {
+            return "shard-" + index + "-of-" + count + ".json";
+        }
+    }
+
+    /**
+     * A ref of a source to be synced.
+     *
+     * @param outputFolder The folder the ref is synced into, relative to the docs root, which identifies the unit
+     */
+    record WorkUnit(Source source, String ref, String outputFolder) {}
+
+    record UnitWeight(long files, long bytes) {
+        long cost() {
+            return bytes + files * FILE_WEIGHT_BYTES;
+        }
+    }
+
+    /**
+     * @param resolvedRef The commit and docs folder tree the ref resolved to, or null if it wasn't resolved
+     * @param syncedRef The sync state of the output folder once the shard finished, or null if it isn't in sync
+     */
+    record UnitResult(String outputFolder, UnitWeight weight, GitHubFolderDownloader.ResolvedRef resolvedRef,
+                      SyncState.SyncedRef syncedRef) {}
+
+    /**
+     * What a shard did, for the merge step.
+     *
+     * @param planHash Identifies the plan the shard worked from, so shards which disagree on it aren't merged
+     */
+    record ShardManifest(int shard, int shardCount, String planHash, List<UnitResult> units, ChangeManifest.Manifest changes) {}
+
+    /**
+     * Assigns the units to shards, heaviest first, each to the shard with the least weight so far. Units with no
+     * weight from the last run are given the average weight of those that have one.
+     *
+     * @return The units of each shard, in shard order
+     */
+    static List<List<WorkUnit>> plan(List<WorkUnit> units, Map<String, UnitWeight> weights, int shardCount) {
+        long averageCost = (long) weights.values().stream().mapToLong(UnitWeight::cost).average().orElse(1);
+        Map<String, Long> costs = new HashMap<>();
+        for (WorkUnit unit : units) {
+            UnitWeight weight = weights.get(unit.outputFolder());
+            costs.put(unit.outputFolder(), weight != null ? weight.cost() : averageCost);
+        }
+
+        List<WorkUnit> sortedUnits = new ArrayList<>(units);
+        sortedUnits.sort(Comparator.<WorkUnit>comparingLong(unit -> costs.get(unit.outputFolder())).reversed()
+            .thenComparing(WorkUnit::outputFolder));
+
+        List<List<WorkUnit>> shards = new ArrayList<>();
+        long[] shardCosts = new long[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new ArrayList<>());
+        }
+        for (WorkUnit unit : sortedUnits) {
+            int lightest = 0;
+            for (int i = 1; i < shardCount; i++) {
+                if (shardCosts[i] < shardCosts[lightest]) {
+                    lightest = i;
+                }
+            }
+            shards.get(lightest).add(unit);
+            shardCosts[lightest] += costs.get(unit.outputFolder());
+        }
+
+        LOGGER.debug("Shard weights: " + Arrays.toString(shardCosts));
+        return shards;
+    }
+
+    static String planHash(List<List<WorkUnit>> plan) {
+        StringBuilder shards = new StringBuilder();
+        for (List<WorkUnit> shard : plan) {
+            shard.forEach(unit -> shards.append(unit.outputFolder()).append('\n'));
+            shards.append('\0');
+        }
+        return FileTools.sha256(shards.toString());
+    }
+
+    /**
+     * @return The number and total size of the files in a folder
+     */
+    static UnitWeight measure(Path folder) throws IOException {
+        if (!Files.isDirectory(folder)) {
+            return new UnitWeight(0, 0);
+        }
+        long files = 0;
+        long bytes = 0;
+        try (Stream<Path> paths = Files.walk(folder)) {
+            for (Path file : paths.filter(Files::isRegularFile).toList()) {
+                files++;
+                bytes += Files.size(file);
+            }
+        }
+        return new UnitWeight(files, bytes);
+    }
+
+    static Map<String, UnitWeight> loadWeights(ObjectMapper mapper, Path weightsPath) throws IOException {
+        if (!Files.exists(weightsPath)) {
+            return Map.of();
+        }
+        return mapper.readValue(weightsPath.toFile(), new TypeReference<Map<String, UnitWeight>>() {});
+    }
+
+    static void saveWeights(ObjectMapper mapper, Path weightsPath, Map<String, UnitWeight> weights) throws IOException {
+        Files.createDirectories(weightsPath.toAbsolutePath().getParent());
+        mapper.writerWithDefaultPrettyPrinter().writeValue(weightsPath.toFile(), new TreeMap<>(weights));
+    }
+
+    /**
+     * Reads the shard manifests in a folder, which holds none if it doesn't exist.
+     */
+    static List<ShardManifest> readManifests(ObjectMapper mapper, Path shardsDir) throws IOException {
+        List<ShardManifest> manifests = new ArrayList<>();
+        if (Files.isDirectory(shardsDir)) {
+            try (Stream<Path> files = Files.list(shardsDir)) {
+                for (Path file : files.filter(file -> file.getFileName().toString().endsWith(".json")).sorted().toList()) {
+                    manifests.add(mapper.readValue(file.toFile(), ShardManifest.class));
+                }
+            }
+        }
+        return manifests;
+    }
+
+    /**
+     * Checks the manifests cover every shard of a run exactly once.
+     *
+     * @throws IllegalStateException If there are no manifests, a shard's manifest is missing or duplicated, or the
+     *                               shards worked from different plans
+     */
+    static void checkManifests(List<ShardManifest> manifests) {
+        if (manifests.isEmpty()) {
+            throw new IllegalStateException("no shard manifests were found");
+        }
+
+        int shardCount = manifests.get(0).shardCount();
+        String planHash = manifests.get(0).planHash();
+        Set<Integer> shards = new TreeSet<>();
+        for (ShardManifest manifest : manifests) {
+            if (manifest.shardCount() != shardCount || !manifest.planHash().equals(planHash)) {
+                throw new IllegalStateException("shard " + manifest.shard() + "/" + manifest.shardCount()
+                    + " was planned differently to shard " + manifests.get(0).shard() + "/" + shardCount);
+            }
+            shards.add(manifest.shard());
+        }
+        if (shards.size() != shardCount || manifests.size() != shardCount) {
+            throw new IllegalStateException("expected one manifest for each of " + shardCount + " shards, but found shards " + shards);
+        }
+    }
+}
+
+/**
+ * Wakes up the watch loop, either when the poll interval is up or as soon as a {@code POST /sync} request is received
+ * on the trigger port. The endpoint only listens on the loopback interface. Requests received while a sync is running
+ * are coalesced into a single follow-up sync.
+ */
+class SyncTrigger implements AutoCloseable {
+
+    static final Logger LOGGER = Logger.getLogger(SyncTrigger.class);
+
+    private final Semaphore triggered = new Semaphore(0);
+    private final HttpServer server;
+
+    /**
+     * @param port The port to listen on, or null to only poll
+     */
+    SyncTrigger(Integer port) throws IOException {
+        if (port == null) {
+            server = null;
+            return;
         }
-        
-        // Read response
-        StringBuilder response = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(
-                new InputStreamReader(conn.getInputStream()))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                response.append(line);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/sync", exchange -> {
+            try (exchange) {
+                if (!exchange.getRequestMethod().equals("POST")) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                LOGGER.info("Sync triggered by " + exchange.getRemoteAddress());
+                trigger();
+                exchange.sendResponseHeaders(202, -1);
             }
-        }
+        });
+        server.start();
+    }
 
-        GITHUB_CONCURRENT_REQUEST_AVAILABLE.release();
-        
-        return response.toString();
+    String url() {
+        return server != null ? "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/sync" : null;
     }
-    
-    private void downloadFile(String downloadUrl, Path destPath) throws IOException, URISyntaxException, InterruptedException {
-        GITHUB_CONCURRENT_REQUEST_AVAILABLE.acquire();
 
-        URL url = new URI(downloadUrl).toURL();
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        
-        // Set headers for file download
-        if (accessToken != null && !accessToken.isEmpty()) {
-            conn.setRequestProperty("Authorization", "token " + accessToken);
+    void trigger() {
+        // Only one permit is needed however many requests arrive before the next sync starts
+        if (triggered.availablePermits() == 0) {
+            triggered.release();
         }
-        
-        try (InputStream in = conn.getInputStream()) {
-            Files.copy(in, destPath, 
-                StandardCopyOption.REPLACE_EXISTING);
-        }
-
-        GITHUB_CONCURRENT_REQUEST_AVAILABLE.release();
     }
-    
-    // Records to represent GitHub tree
-    public record GitHubTreeNode(Path path, String mode, String type, String sha, int size, String url) {}
-    public record GitHubTreeResponse(String sha, String url, List<GitHubTreeNode> tree, Boolean truncated) {}
-}
-
-class FileTools {
 
-    public static void prependToFile(Path filePath, String textToPrepend) throws IOException {
-        String content = new String(Files.readAllBytes(filePath));
-        String newContent = textToPrepend + content;
-        Files.write(filePath, newContent.getBytes());
+    /**
+     * Waits until a sync is triggered or the timeout is up, whichever comes first.
+     */
+    void await(long timeout, TimeUnit unit) throws InterruptedException {
+        triggered.tryAcquire(timeout, unit);
+        triggered.drainPermits();
     }
 
-    public static List<Path> findIndexFiles(Path directory) {
-        FileFilter fileFilter = WildcardFileFilter.builder().setWildcards("*index.adoc", "*index.md").get();
-        File[] files = directory.toFile().listFiles(fileFilter);
-        return Arrays.asList(files).stream().map(file -> file.toPath()).toList();
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+        }
     }
-
 }
 
 @Command(name = "docBuilder", mixinStandardHelpOptions = true, version = "docBuilder 0.2",
@@ -251,63 +4388,122 @@ class DocBuilder implements Callable<Integer> {
     @Option(names = {"--cleanup"}, description = "Remove cached doc folders for tags no longer listed in the config")
     private boolean cleanup;
 
+    @Option(names = {"--cache-dir"}, description = "Directory for build state kept between runs, such as sync manifests", defaultValue = ".docbuilder")
+    private String cacheDir;
+
+    @Option(names = {"--http-cache-size"}, description = "Maximum size in MiB of the HTTP response cache kept in the cache directory (default: ${DEFAULT-VALUE})", defaultValue = "512")
+    private long httpCacheSizeMiB;
+
+    @Option(names = {"--max-requests"}, description = "Maximum number of concurrent requests to GitHub (default: ${DEFAULT-VALUE})", defaultValue = "" + RequestScheduler.DEFAULT_MAX_CONCURRENT_REQUESTS)
+    private int maxConcurrentRequests;
+
+    @Option(names = {"--max-retries"}, description = "How many times a throttled or failed request is retried (default: ${DEFAULT-VALUE})", defaultValue = "5")
+    private int maxRetries;
+
+    @Option(names = {"--api-url"}, description = "Base URL of the GitHub REST API (default: ${DEFAULT-VALUE})", defaultValue = GitHubFolderDownloader.GITHUB_API_BASE)
+    private String apiUrl;
+
+    @Option(names = {"--raw-url"}, description = "Base URL raw file contents are downloaded from (default: ${DEFAULT-VALUE})", defaultValue = GitHubFolderDownloader.GITHUB_RAW_BASE)
+    private String rawUrl;
+
+    @Option(names = {"--git-url"}, description = "Base URL repositories are fetched from in git fetch mode (default: ${DEFAULT-VALUE})", defaultValue = GitMirrors.GITHUB_GIT_BASE)
+    private String gitUrl;
+
+    @Option(names = {"--search-index"}, description = "Directory to write the site search index to (default: ${DEFAULT-VALUE})", defaultValue = "assets/search-index")
+    private String searchIndexDir;
+
+    @Option(names = {"--report"}, description = "Path to write the JSON build report to (default: build-report.json in the cache directory)")
+    private String reportPath;
+
+    @Option(names = {"--summary"}, description = "Log a summary table of the build report at the end of the run")
+    private boolean summary;
+
+    @Option(names = {"--full-sync"}, description = "Sync every ref and regenerate every contents page, even if their docs folder is unchanged since the last sync")
+    private boolean fullSync;
+
+    @Option(names = {"--changes"}, description = "Path to write the manifest of files changed by each sync to (default: changes.json in the cache directory)")
+    private String changesPath;
+
+    @Option(names = {"--shard"}, description = "Only sync and render shard i of n (e.g. 2/4) of the refs of all sources, balanced by their size in the last run, and write a shard manifest for --merge-shards")
+    private String shard;
+
+    @Option(names = {"--merge-shards"}, description = "Merge the outputs of the shards of a sharded run, then generate the contents pages, clean up, render and index the site once")
+    private boolean mergeShards;
+
+    @Option(names = {"--shard-output"}, description = "With --merge-shards, a copy of a shard's working directory holding its output folders and manifest, at the same --root and --cache-dir paths. Repeat for each shard (default: the shards' outputs are already in this working directory)")
+    private List<Path> shardOutputs = new ArrayList<>();
+
+    @Option(names = {"--optimize-images"}, description = "Losslessly recompress the PNG and JPEG images pulled from sources and write downscaled variants of them for the rendered pages to offer as a srcset")
+    private boolean optimizeImages;
+
+    @Option(names = {"--watch"}, description = "Keep running after the first sync, re-syncing the refs which have changed every poll interval or when triggered")
+    private boolean watch;
+
+    @Option(names = {"--poll-interval"}, description = "Seconds between syncs in watch mode (default: ${DEFAULT-VALUE})", defaultValue = "60")
+    private long pollIntervalSeconds;
+
+    @Option(names = {"--trigger-port"}, description = "Port on localhost to accept POST /sync requests on in watch mode, which start a sync straight away")
+    private Integer triggerPort;
+
+    @Option(names = {"--asciidoc-failure-level"}, description = "The least severe Asciidoctor message which fails the build: ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE})", defaultValue = "FATAL")
+    private Severity asciiDocFailureLevel;
+
+    @Option(names = {"--fail-on-broken-links"}, description = "Exit with an error, before Hugo is run, if any link, anchor, image or include in the content doesn't resolve")
+    private boolean failOnBrokenLinks;
+
+    @Option(names = {"--fetch-mode"}, description = "How to fetch sources which don't set fetchMode: ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE})", defaultValue = "TREE")
+    private FetchMode fetchMode;
+
     @Parameters(index="0", description = "GitHub Access Token. If not provided, falls back to the GITHUB_TOKEN environment variable.", arity = "0..1")
     private String accessToken;
 
     private Path docsRootPath;
     private Path templateDirPath;
+    private TemplateRenderer templateRenderer;
+    private BuildMetrics metrics = new BuildMetrics();
+    private ChangeManifest changes;
+    private Sharding.Shard shardSpec;
+    private Map<GitHubFolderDownloader.RefQuery, GitHubFolderDownloader.ResolvedRef> resolvedRefs = Map.of();
+    private SyncState syncState = new SyncState(Map.of(), Map.of());
+    private List<LinkValidator.Problem> linkProblems = List.of();
+    private ObjectMapper objectMapper;
+    // Kept for the whole run, so in watch mode each sync reuses the blobs and images already known to be stored and
+    // the concurrency limit the scheduler has settled on
+    private BlobStore blobStore;
+    private ImageOptimizer imageOptimizer;
+    private RequestScheduler scheduler;
+
+    DocBuilder() {
+    }
+
+    /**
+     * Creates a builder for rendering pages into {@code docsRootPath} without going through the command line.
+     */
+    DocBuilder(Path docsRootPath, Path templateDirPath) {
+        this.docsRootPath = docsRootPath;
+        this.templateDirPath = templateDirPath;
+        this.templateRenderer = new TemplateRenderer(templateDirPath);
+    }
 
     public static void main(String... args) {
         BasicConfigurator.configure();
-        int exitCode = new CommandLine(new DocBuilder()).execute(args);
+        int exitCode = new CommandLine(new DocBuilder()).setCaseInsensitiveEnumValuesAllowed(true).execute(args);
         System.exit(exitCode);
     }
 
-    private static boolean hasHugoFrontMatter(Path filePath) throws IOException {
-        try (BufferedReader reader = Files.newBufferedReader(filePath)) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.contains("+++")) {
-                    return true;
-                }
-            }
-        }
-        return false;
-    }
-
     private String renderTemplate(String templateFileName, Map<String, Object> context) throws IOException {
-        Jinjava jinjava = new Jinjava();
-        Path templatePath = templateDirPath.resolve(templateFileName);
-
-        if (!Files.exists(templatePath)) {
-            LOGGER.error("Template file does not exist: " + templatePath);
-            throw new FileNotFoundException("Template file does not exist: " + templatePath);
-        }
-        String template = Files.readString(templatePath);
-        return jinjava.render(template, context);
+        return templateRenderer.render(templateFileName, context);
     }
 
-    private void addHeaderToIndexFiles(Path sourceFolder, String sourceName, String versionReference, boolean isDevelopmentBranch) throws IOException {
-        LOGGER.info("Adding Hugo frontmatter header to index files in " + sourceName + " - " + sourceFolder);
-        List<Path> indexFiles = FileTools.findIndexFiles(sourceFolder);
-        if (indexFiles.size() == 0){
-            LOGGER.warn("Found no index files in docs folder:" + sourceFolder);
-        } else {
-
-            Map<String, Object> headerData = Map.of(
-                "version", versionReference,
-                "isDevelopmentBranch", isDevelopmentBranch
-            );
-            String renderedHeader = renderTemplate("indexHeader.txt", headerData);
+    private String renderIndexHeader(String versionReference, boolean isDevelopmentBranch) throws IOException {
+        return renderTemplate("indexHeader.txt", indexHeaderData(versionReference, isDevelopmentBranch));
+    }
 
-            for(Path indexFile : indexFiles){
-                if(hasHugoFrontMatter(indexFile)) {
-                    LOGGER.info("Index file " + indexFile + " already has hugo front matter, so will be skipped.");
-                } else {
-                    FileTools.prependToFile(indexFile, renderedHeader);
-                }
-            }
-        }
+    private Map<String, Object> indexHeaderData(String versionReference, boolean isDevelopmentBranch) {
+        return Map.of(
+            "version", versionReference,
+            "isDevelopmentBranch", isDevelopmentBranch
+        );
     }
 
     private void processSource(
@@ -323,16 +4519,61 @@ class DocBuilder implements Callable<Integer> {
         if (skipIfOutputFolderExists && Files.exists(outputDirectory)) {
             LOGGER.info("Folder already exists for " + source.name() + " " + versionReference + " so download will be skipped");
         } else {
+            BuildMetrics.ScopeMetrics refMetrics = metrics.forRef(source.name(), versionReference);
             try {
-                ghFolderDownloader.downloadFolder(
-                    source.sourceOwner(),
-                    source.sourceRepository(),
-                    versionReference,
-                    source.docsFolderPath(),
-                    outputDirectory
-                );
-                //Add the header to the index file
-                addHeaderToIndexFiles(outputDirectory, source.name(), versionReference, isDevelopmentBranch);
+                // The header is compared by its template and values, so it is only rendered if the ref is synced
+                String indexHeaderKey = templateRenderer.renderKey("indexHeader.txt", indexHeaderData(versionReference, isDevelopmentBranch));
+                GitHubFolderDownloader.ResolvedRef resolvedRef = resolvedRef(source, versionReference);
+                String outputFolder = outputFolder(source, versionReference);
+                if (!fullSync && Files.exists(outputDirectory) && syncState.isRefUnchanged(outputFolder, resolvedRef, indexHeaderKey, imagesVersion())) {
+                    LOGGER.info("Skipping " + source.name() + " " + versionReference + " as its docs folder at commit " + resolvedRef.commitSha() + " is unchanged since it was last synced");
+                    return;
+                }
+
+                // The Hugo frontmatter header is added to the index files as they are downloaded
+                String indexHeader;
+                BuildMetrics.Timer headerTimer = refMetrics.time(BuildMetrics.PHASE_HEADER_INJECTION);
+                try {
+                    indexHeader = renderIndexHeader(versionReference, isDevelopmentBranch);
+                } finally {
+                    headerTimer.close();
+                }
+
+                syncState.refSyncStarted(outputFolder);
+                SyncManifest.Changes refChanges = switch (source.fetchModeOr(fetchMode)) {
+                    case TREE -> ghFolderDownloader.downloadFolder(
+                        source.sourceOwner(),
+                        source.sourceRepository(),
+                        versionReference,
+                        source.docsFolderPath(),
+                        outputDirectory,
+                        indexHeader,
+                        refMetrics
+                    );
+                    case ARCHIVE -> ghFolderDownloader.downloadFolderFromArchive(
+                        source.sourceOwner(),
+                        source.sourceRepository(),
+                        versionReference,
+                        source.docsFolderPath(),
+                        outputDirectory,
+                        indexHeader,
+                        refMetrics
+                    );
+                    case GIT -> ghFolderDownloader.downloadFolderFromMirror(
+                        source.sourceOwner(),
+                        source.sourceRepository(),
+                        versionReference,
+                        source.docsFolderPath(),
+                        outputDirectory,
+                        indexHeader,
+                        refMetrics
+                    );
+                };
+                changes.record(outputDirectory, refChanges);
+                syncState.refSynced(outputFolder, resolvedRef, indexHeaderKey, imagesVersion());
+                if (FileTools.findIndexFiles(outputDirectory).isEmpty()) {
+                    LOGGER.warn("Found no index files in docs folder:" + outputDirectory);
+                }
             } catch (FileNotFoundException fileNotFoundError) {
                 LOGGER.error(
                     "Unable to download folder for: " + source.name() + " - " + versionReference +". Is the version string valid?",
@@ -346,6 +4587,72 @@ class DocBuilder implements Callable<Integer> {
 
     }
 
+    private String imagesVersion() {
+        return optimizeImages ? ImageOptimizer.VERSION : null;
+    }
+
+    /**
+     * @return The folder a ref of a source is synced into, relative to the docs root
+     */
+    private static String outputFolder(Source source, String ref) {
+        return source.outputPathOrName().resolve(ref).toString();
+    }
+
+    private GitHubFolderDownloader.ResolvedRef resolvedRef(Source source, String ref) {
+        return resolvedRefs.get(new GitHubFolderDownloader.RefQuery(
+            source.sourceOwner(), source.sourceRepository(), ref, source.docsFolderPath()));
+    }
+
+    /**
+     * Resolves the docs folder tree SHA of the development branch (unless only tags are being synced) and every tag
+     * of every source in one request. If that fails, every ref is synced as if it had changed.
+     */
+    private Map<GitHubFolderDownloader.RefQuery, GitHubFolderDownloader.ResolvedRef> resolveRefs(
+        GitHubFolderDownloader ghFolderDownloader, List<Source> sources) throws InterruptedException {
+
+        List<GitHubFolderDownloader.RefQuery> refQueries = new ArrayList<>();
+        for (Source source : sources) {
+            List<String> refs = new ArrayList<>(source.tags());
+            if (!tagsOnly) {
+                refs.add(source.developmentBranch());
+            }
+            for (String ref : refs) {
+                refQueries.add(new GitHubFolderDownloader.RefQuery(
+                    source.sourceOwner(), source.sourceRepository(), ref, source.docsFolderPath()));
+            }
+        }
+
+        try {
+            Map<GitHubFolderDownloader.RefQuery, GitHubFolderDownloader.ResolvedRef> resolved = ghFolderDownloader.resolveRefs(refQueries);
+            LOGGER.info("Resolved " + resolved.size() + " of " + refQueries.size() + " refs");
+            return resolved;
+        } catch (IOException | URISyntaxException e) {
+            LOGGER.warn("Unable to resolve refs, so every ref will be synced", e);
+            return Map.of();
+        }
+    }
+
+    /**
+     * Hashes everything the contents page of a source is generated from: the source definition, the template and
+     * the docs folder tree of each ref, which determines where its index file is.
+     *
+     * @return The hash, or null if any of the refs weren't resolved
+     */
+    private String contentsPageInputsHash(Source source) throws IOException {
+        StringBuilder inputs = new StringBuilder(source.toString()).append('\n');
+        inputs.append(Files.readString(templateDirPath.resolve("contents.md"))).append('\n');
+        List<String> refs = new ArrayList<>(source.tags());
+        refs.add(source.developmentBranch());
+        for (String ref : refs) {
+            GitHubFolderDownloader.ResolvedRef resolvedRef = resolvedRef(source, ref);
+            if (resolvedRef == null) {
+                return null;
+            }
+            inputs.append(ref).append(' ').append(resolvedRef.treeSha()).append('\n');
+        }
+        return FileTools.sha256(inputs.toString());
+    }
+
     /**
      * Gets the relative path to the index file for a given source and tag.
      *
@@ -385,14 +4692,14 @@ class DocBuilder implements Callable<Integer> {
      * @throws IOException If an I/O error occurs while creating the contents page.
      * @throws FileNotFoundException If the template file does not exist or an index file cannot be found for the source.
      */
-    private void createSourceContentsPage(Source source) throws IOException {
+    void createSourceContentsPage(Source source) throws IOException {
 
         if (source.skipContentsPageCreation()) {
             LOGGER.info("Skipping contents page creation for " + source.name() + " as skipContentsPageCreation is set to true.");
             return;
         }
 
-        Path contentsFile = docsRootPath.resolve(source.outputPathOrName()).resolve("_index.md");
+        Path contentsFile = contentsFile(source);
         if (Files.exists(contentsFile)) {
             LOGGER.info("Contents file already exists for " + source.name() + " at " + contentsFile  + " this will be overwritten.");
             Files.delete(contentsFile);
@@ -430,6 +4737,10 @@ class DocBuilder implements Callable<Integer> {
         Files.writeString(contentsFile, renderedTemplate);
     }
 
+    private Path contentsFile(Source source) {
+        return docsRootPath.resolve(source.outputPathOrName()).resolve("_index.md");
+    }
+
     private void cleanupRemovedTags(Source source) throws IOException {
         Path sourceDir = docsRootPath.resolve(source.outputPathOrName());
         if (!Files.exists(sourceDir)) return;
@@ -443,6 +4754,9 @@ class DocBuilder implements Callable<Integer> {
                 String name = dir.getFileName().toString();
                 if (!expectedNames.contains(name)) {
                     LOGGER.info("Removing docs for removed tag: " + source.name() + " " + name);
+                    try (Stream<Path> files = Files.walk(dir)) {
+                        files.filter(Files::isRegularFile).forEach(changes::removed);
+                    }
                     org.apache.commons.io.FileUtils.deleteDirectory(dir.toFile());
                 }
             }
@@ -451,6 +4765,34 @@ class DocBuilder implements Callable<Integer> {
 
     @Override
     public Integer call() throws Exception {
+        this.docsRootPath = Paths.get(docsRoot);
+        this.templateDirPath = Paths.get(templateDir);
+        this.templateRenderer = new TemplateRenderer(templateDirPath);
+
+        if (watch && (shard != null || mergeShards)) {
+            LOGGER.error("--watch can't be combined with --shard or --merge-shards");
+            return 1;
+        }
+        if (!shardOutputs.isEmpty() && (!mergeShards || docsRootPath.isAbsolute() || Paths.get(cacheDir).isAbsolute())) {
+            LOGGER.error("--shard-output can only be used with --merge-shards and relative --root and --cache-dir paths, which are resolved in each shard output");
+            return 1;
+        }
+        if (shard != null) {
+            try {
+                shardSpec = Sharding.Shard.parse(shard);
+            } catch (IllegalArgumentException e) {
+                LOGGER.error(e.getMessage());
+                return 1;
+            }
+        }
+
+        // Merging only works on the shards' outputs, so it doesn't need to talk to GitHub
+        if (mergeShards) {
+            try (AsciiDocRenderer asciiDocRenderer = new AsciiDocRenderer(docsRootPath, Paths.get(cacheDir).resolve("renders"), asciiDocFailureLevel)) {
+                return merge(asciiDocRenderer);
+            }
+        }
+
         if (accessToken == null || accessToken.isEmpty()) {
             accessToken = System.getenv("GITHUB_TOKEN");
         }
@@ -459,11 +4801,68 @@ class DocBuilder implements Callable<Integer> {
             return 1;
         }
 
-        LOGGER.info("Loading: " + sourcePath);
+        HttpResponseCache responseCache = new HttpResponseCache(Paths.get(cacheDir).resolve("http"), httpCacheSizeMiB * 1024 * 1024);
+        blobStore = new BlobStore(Paths.get(cacheDir).resolve("blobs"));
+        imageOptimizer = optimizeImages ? new ImageOptimizer(Paths.get(cacheDir).resolve("images")) : null;
+        scheduler = new RequestScheduler(maxConcurrentRequests, maxRetries, metrics);
 
-        BufferedReader bufferedReader = new BufferedReader(new FileReader(sourcePath));
-        ObjectMapper objectMapper = new ObjectMapper();
-        List<Source> sources = objectMapper.readValue(bufferedReader, new TypeReference<List<Source>>(){});
+        // Nearly all the work is waiting on GitHub, so use a virtual thread per task rather than the common pool,
+        // whose parallelism is limited by the number of cores
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+             AsciiDocRenderer asciiDocRenderer = new AsciiDocRenderer(docsRootPath, Paths.get(cacheDir).resolve("renders"), asciiDocFailureLevel)) {
+            sync(executor, responseCache, asciiDocRenderer, true);
+            if (brokenLinks()) {
+                return 1;
+            }
+            if (watch) {
+                watch(executor, responseCache, asciiDocRenderer);
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Re-syncs every {@code --poll-interval} seconds, or as soon as a sync is triggered through the trigger endpoint,
+     * until the process is stopped. The caches, templates, blob store, request scheduler and Asciidoctor runtime stay
+     * warm between syncs, and each sync only pulls the refs which have changed. The links are validated again after
+     * each sync which changes the site.
+     */
+    private void watch(ExecutorService executor, HttpResponseCache responseCache, AsciiDocRenderer asciiDocRenderer) throws IOException {
+        try (SyncTrigger trigger = new SyncTrigger(triggerPort)) {
+            LOGGER.info("Watching for changes every " + pollIntervalSeconds + "s"
+                + (triggerPort != null ? " or when triggered at " + trigger.url() : ""));
+            while (!Thread.currentThread().isInterrupted()) {
+                trigger.await(pollIntervalSeconds, TimeUnit.SECONDS);
+                try {
+                    if (sync(executor, responseCache, asciiDocRenderer, false)) {
+                        // Broken links fail the first sync, but only get reported while watching, so the site keeps
+                        // being updated while they are fixed
+                        brokenLinks();
+                    }
+                } catch (Exception e) {
+                    // A failed sync, e.g. because GitHub is unreachable, shouldn't stop the watch
+                    LOGGER.error("Sync failed, it will be retried on the next poll", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            LOGGER.info("Stopped watching for changes");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Syncs every source, then rebuilds the rendered pages and search index and writes the build report and change
+     * manifest.
+     *
+     * @param firstSync Whether this is the first sync of the run. Later syncs in watch mode only rebuild the rendered
+     *                  pages and search index if a file has changed.
+     * @return Whether the rendered pages and search index were rebuilt and the links validated
+     */
+    private boolean sync(ExecutorService executor, HttpResponseCache responseCache, AsciiDocRenderer asciiDocRenderer,
+                         boolean firstSync) throws Exception {
+        ObjectMapper objectMapper = objectMapper();
+        List<Source> sources = loadSources(objectMapper);
 
         Map<Source, List<CompletableFuture<Void>>> sourceFutures = sources.stream()
             .collect(Collectors.toMap(
@@ -471,15 +4870,34 @@ class DocBuilder implements Callable<Integer> {
                 source -> new ArrayList<>()
             ));
 
-        this.docsRootPath = Paths.get(docsRoot);
-        this.templateDirPath = Paths.get(templateDir);
+        // The metrics and changes are per sync, so the report and change manifest only cover this sync
+        metrics = new BuildMetrics();
+        changes = new ChangeManifest(docsRootPath);
+        scheduler.recordInto(metrics);
+        Path syncStatePath = Paths.get(cacheDir).resolve("sync-state.json");
+
+        GitHubFolderDownloader ghFolderDownloader = new GitHubFolderDownloader(
+            accessToken, apiUrl, rawUrl, gitUrl, Paths.get(cacheDir), responseCache, blobStore, imageOptimizer, scheduler, executor);
 
-        GitHubFolderDownloader ghFolderDownloader = new GitHubFolderDownloader(accessToken);
+        // Resolve every ref up front, so those whose docs folder hasn't changed since the last sync are skipped
+        // without any further requests
+        syncState = SyncState.load(objectMapper, syncStatePath);
+        resolvedRefs = resolveRefs(ghFolderDownloader, sources);
+
+        // When sharded, only this shard's refs are synced, and everything which covers a whole source is left to the
+        // merge step
+        List<List<Sharding.WorkUnit>> shardPlan = null;
+        Set<String> shardFolders = null;
+        if (shardSpec != null) {
+            shardPlan = Sharding.plan(workUnits(sources), Sharding.loadWeights(objectMapper, shardWeightsPath()), shardSpec.count());
+            shardFolders = shardPlan.get(shardSpec.index() - 1).stream().map(Sharding.WorkUnit::outputFolder).collect(Collectors.toSet());
+            LOGGER.info("Shard " + shard + " will sync " + shardFolders.size() + " refs: " + new TreeSet<>(shardFolders));
+        }
 
         for (Source source : sources) {
             LOGGER.info("Found source: " + source);
 
-            if (!tagsOnly) {
+            if (!tagsOnly && (shardFolders == null || shardFolders.contains(outputFolder(source, source.developmentBranch())))) {
                 sourceFutures.get(source).add(CompletableFuture.runAsync(() -> {
                     try {
                         //Download the dev branch
@@ -487,43 +4905,325 @@ class DocBuilder implements Callable<Integer> {
                     } catch (Exception e) {
                         throw new RuntimeException(e);
                     }
-                }));
+                }, executor));
             }
 
             //Download each of the tags
             for (String tag : source.tags()) {
+                if (shardFolders != null && !shardFolders.contains(outputFolder(source, tag))) {
+                    continue;
+                }
                 sourceFutures.get(source).add(CompletableFuture.runAsync(() -> {
                     try {
                         processSource(ghFolderDownloader, source, tag, true, false);
                     } catch (Exception e) {
                         throw new RuntimeException(e);
                     }
-                }));
+                }, executor));
             }
 
             // Wait for the development branch and tags of this source to finish processing, then generate a contents page
             CompletableFuture<Void> branchAndTagFutures = CompletableFuture.allOf(sourceFutures.get(source).toArray(new CompletableFuture[0]));
-            if (!tagsOnly) {
-                sourceFutures.get(source).add(branchAndTagFutures.thenRun(() -> {
+            if (!tagsOnly && shardFolders == null) {
+                sourceFutures.get(source).add(branchAndTagFutures.thenRunAsync(() -> {
                     try {
-                        // Create the contents page for this source
-                        createSourceContentsPage(source);
+                        updateContentsPage(source);
                     } catch (IOException e) {
                         throw new RuntimeException(e);
                     }
-                }));
+                }, executor));
             }
         }
 
         // Wait for everything to finish processing and generating
         CompletableFuture.allOf(sourceFutures.values().stream().flatMap(List::stream).toArray(CompletableFuture[]::new)).join();
+        syncState.save(objectMapper, syncStatePath);
 
-        if (cleanup) {
+        responseCache.evict();
+        blobStore.prune();
+        if (imageOptimizer != null) {
+            imageOptimizer.prune();
+        }
+
+        boolean rebuilt = false;
+        if (shardSpec != null) {
+            List<Sharding.WorkUnit> shardUnits = shardPlan.get(shardSpec.index() - 1);
+            asciiDocRenderer.renderFolders(shardUnits.stream().map(unit -> docsRootPath.resolve(unit.outputFolder())).toList(), changes);
+            writeShardManifest(objectMapper, shardPlan, shardUnits);
+        } else {
+            if (cleanup) {
+                cleanupRemovedTags(sources);
+            }
+            // These cover the whole content tree, so they are only rebuilt alongside the development branches
+            if (!tagsOnly && (firstSync || !changes.isEmpty())) {
+                rebuildSite(sources, asciiDocRenderer);
+                rebuilt = true;
+            }
+        }
+
+        writeChangesAndReport(objectMapper, scheduler.concurrencyLimit());
+        return rebuilt;
+    }
+
+    /**
+     * Merges the outputs of a sharded run. Each shard's output is a copy of its working directory, or of the parts of
+     * it holding its output folders under the docs root and its manifest under the cache directory, given by
+     * {@code --shard-output}. Without any, the outputs are taken to be in place in this working directory already.
+     * Every output folder a manifest lists as synced must be in its shard's output, and is copied into the docs root
+     * along with its sync manifest. The sync state and shard weights are then updated from the manifests, and the
+     * contents pages, cleanup, rendering and search index, which each cover a whole source or the whole site, are done
+     * once for all the shards.
+     *
+     * @return The exit code
+     */
+    private int merge(AsciiDocRenderer asciiDocRenderer) throws Exception {
+        ObjectMapper objectMapper = objectMapper();
+        List<Source> sources = loadSources(objectMapper);
+        metrics = new BuildMetrics();
+        changes = new ChangeManifest(docsRootPath);
+
+        Path shardsDir = Paths.get(cacheDir).resolve(Sharding.SHARDS_DIR);
+        List<Path> outputs = shardOutputs.isEmpty() ? List.of(Paths.get("")) : shardOutputs;
+        Map<Sharding.ShardManifest, Path> shardOutputOf = new LinkedHashMap<>();
+        for (Path output : outputs) {
+            for (Sharding.ShardManifest shardManifest : Sharding.readManifests(objectMapper, output.resolve(shardsDir))) {
+                shardOutputOf.put(shardManifest, output);
+            }
+        }
+        List<Sharding.ShardManifest> shardManifests = new ArrayList<>(shardOutputOf.keySet());
+        try {
+            Sharding.checkManifests(shardManifests);
+        } catch (IllegalStateException e) {
+            LOGGER.error("Unable to merge shards from " + outputs + ": " + e.getMessage());
+            return 1;
+        }
+
+        // Every folder is checked before any are copied, so a missing one doesn't leave the docs root half merged
+        List<String> missingFolders = new ArrayList<>();
+        for (Sharding.ShardManifest shardManifest : shardManifests) {
+            Path shardRoot = shardOutputOf.get(shardManifest).resolve(docsRootPath);
+            for (Sharding.UnitResult unit : shardManifest.units()) {
+                if (unit.syncedRef() != null && !Files.isDirectory(shardRoot.resolve(unit.outputFolder()))) {
+                    missingFolders.add(shardRoot.resolve(unit.outputFolder()) + " (shard " + shardManifest.shard() + ")");
+                }
+            }
+        }
+        if (!missingFolders.isEmpty()) {
+            LOGGER.error("Unable to merge shards as the output folders of refs they synced are missing: " + missingFolders);
+            return 1;
+        }
+        LOGGER.info("Merging " + shardManifests.size() + " shards");
+
+        Map<String, Sharding.WorkUnit> workUnits = new HashMap<>();
+        workUnits(sources).forEach(unit -> workUnits.put(unit.outputFolder(), unit));
+        for (Sharding.ShardManifest shardManifest : shardManifests) {
+            Path output = shardOutputOf.get(shardManifest);
+            for (Sharding.UnitResult unit : shardManifest.units()) {
+                Sharding.WorkUnit workUnit = workUnits.get(unit.outputFolder());
+                Path outputFolder = output.resolve(docsRootPath).resolve(unit.outputFolder());
+                Path mergedFolder = docsRootPath.resolve(unit.outputFolder());
+                if (workUnit == null || unit.syncedRef() == null
+                    || outputFolder.toAbsolutePath().normalize().equals(mergedFolder.toAbsolutePath().normalize())) {
+                    continue;
+                }
+                LOGGER.debug("Copying " + outputFolder + " into " + mergedFolder);
+                FileTools.replaceWithLinkedCopy(outputFolder, mergedFolder);
+
+                Source source = workUnit.source();
+                Path syncManifest = GitHubFolderDownloader.manifestPath(output.resolve(cacheDir), source.sourceOwner(), source.sourceRepository(), workUnit.ref());
+                if (Files.exists(syncManifest)) {
+                    Path mergedSyncManifest = GitHubFolderDownloader.manifestPath(Paths.get(cacheDir), source.sourceOwner(), source.sourceRepository(), workUnit.ref());
+                    Files.createDirectories(mergedSyncManifest.getParent());
+                    Files.copy(syncManifest, mergedSyncManifest, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+
+        Map<String, Sharding.UnitResult> unitResults = new HashMap<>();
+        for (Sharding.ShardManifest shardManifest : shardManifests) {
+            shardManifest.units().forEach(unit -> unitResults.put(unit.outputFolder(), unit));
+            changes.addAll(shardManifest.changes());
+        }
+
+        // Each ref was synced by exactly one shard, so its state from that shard replaces the previous one
+        Path syncStatePath = Paths.get(cacheDir).resolve("sync-state.json");
+        syncState = SyncState.load(objectMapper, syncStatePath);
+        Map<GitHubFolderDownloader.RefQuery, GitHubFolderDownloader.ResolvedRef> mergedRefs = new HashMap<>();
+        Map<String, Sharding.UnitWeight> weights = new HashMap<>();
+        for (Sharding.WorkUnit unit : workUnits(sources)) {
+            Sharding.UnitResult result = unitResults.get(unit.outputFolder());
+            if (result == null) {
+                continue;
+            }
+            if (result.syncedRef() != null) {
+                syncState.refs().put(unit.outputFolder(), result.syncedRef());
+            } else {
+                syncState.refSyncStarted(unit.outputFolder());
+            }
+            if (result.resolvedRef() != null) {
+                mergedRefs.put(new GitHubFolderDownloader.RefQuery(unit.source().sourceOwner(), unit.source().sourceRepository(),
+                    unit.ref(), unit.source().docsFolderPath()), result.resolvedRef());
+            }
+            weights.put(unit.outputFolder(), result.weight());
+        }
+        resolvedRefs = mergedRefs;
+
+        if (!tagsOnly) {
             for (Source source : sources) {
+                updateContentsPage(source);
+            }
+        }
+        syncState.save(objectMapper, syncStatePath);
+        Sharding.saveWeights(objectMapper, shardWeightsPath(), weights);
+
+        if (cleanup) {
+            cleanupRemovedTags(sources);
+        }
+        if (!tagsOnly) {
+            rebuildSite(sources, asciiDocRenderer);
+        }
+        writeChangesAndReport(objectMapper, 0);
+
+        // The manifests have been merged, so they mustn't be picked up again by the next merge
+        org.apache.commons.io.FileUtils.deleteDirectory(shardsDir.toFile());
+        return brokenLinks() ? 1 : 0;
+    }
+
+    /**
+     * @return The mapper for the sources, sync state and manifests. It is built when first needed and shared by every
+     *         sync in watch mode, so the types it reads and writes are only introspected once.
+     */
+    private ObjectMapper objectMapper() {
+        if (objectMapper == null) {
+            objectMapper = JsonMapper.builder().enable(MapperFeature.ACCEPT_CASE_INSENSITIVE_ENUMS).build();
+        }
+        return objectMapper;
+    }
+
+    private List<Source> loadSources(ObjectMapper objectMapper) throws IOException {
+        LOGGER.info("Loading: " + sourcePath);
+
+        BufferedReader bufferedReader = new BufferedReader(new FileReader(sourcePath));
+        return objectMapper.readValue(bufferedReader, new TypeReference<List<Source>>(){});
+    }
+
+    /**
+     * @return The development branch (unless only tags are being synced) and tags of every source, in config order
+     */
+    private List<Sharding.WorkUnit> workUnits(List<Source> sources) {
+        List<Sharding.WorkUnit> units = new ArrayList<>();
+        for (Source source : sources) {
+            if (!tagsOnly) {
+                units.add(new Sharding.WorkUnit(source, source.developmentBranch(), outputFolder(source, source.developmentBranch())));
+            }
+            for (String tag : source.tags()) {
+                units.add(new Sharding.WorkUnit(source, tag, outputFolder(source, tag)));
+            }
+        }
+        return units;
+    }
+
+    private Path shardWeightsPath() {
+        return Paths.get(cacheDir).resolve("shard-weights.json");
+    }
+
+    /**
+     * Records the refs this shard synced, along with their size, sync state and changed files, for the merge step.
+     */
+    private void writeShardManifest(ObjectMapper objectMapper, List<List<Sharding.WorkUnit>> shardPlan,
+                                    List<Sharding.WorkUnit> shardUnits) throws IOException {
+        List<Sharding.UnitResult> unitResults = new ArrayList<>();
+        for (Sharding.WorkUnit unit : shardUnits) {
+            unitResults.add(new Sharding.UnitResult(
+                unit.outputFolder(),
+                Sharding.measure(docsRootPath.resolve(unit.outputFolder())),
+                resolvedRef(unit.source(), unit.ref()),
+                syncState.refs().get(unit.outputFolder())));
+        }
+        Sharding.ShardManifest shardManifest = new Sharding.ShardManifest(
+            shardSpec.index(), shardSpec.count(), Sharding.planHash(shardPlan), unitResults, changes.toManifest());
+        Path manifestPath = Paths.get(cacheDir).resolve(Sharding.SHARDS_DIR).resolve(shardSpec.fileName());
+        Files.createDirectories(manifestPath.getParent());
+        objectMapper.writerWithDefaultPrettyPrinter().writeValue(manifestPath.toFile(), shardManifest);
+        LOGGER.info("Wrote shard manifest to " + manifestPath);
+    }
+
+    /**
+     * Creates the contents page for a source, unless it exists and none of its inputs have changed since it was last
+     * created.
+     */
+    private void updateContentsPage(Source source) throws IOException {
+        BuildMetrics.Timer contentsTimer = metrics.forSource(source.name()).time(BuildMetrics.PHASE_CONTENTS_PAGE);
+        try {
+            String inputsHash = contentsPageInputsHash(source);
+            if (!fullSync && Files.exists(contentsFile(source)) && syncState.isContentsPageUnchanged(source.name(), inputsHash)) {
+                LOGGER.info("Skipping contents page creation for " + source.name() + " as none of its refs have changed");
+                return;
+            }
+            // Create the contents page for this source
+            boolean contentsFileExisted = Files.exists(contentsFile(source));
+            createSourceContentsPage(source);
+            if (contentsFileExisted) {
+                changes.modified(contentsFile(source));
+            } else {
+                changes.added(contentsFile(source));
+            }
+            syncState.contentsPageGenerated(source.name(), inputsHash);
+        } finally {
+            contentsTimer.close();
+        }
+    }
+
+    private void cleanupRemovedTags(List<Source> sources) throws IOException {
+        for (Source source : sources) {
+            BuildMetrics.Timer cleanupTimer = metrics.forSource(source.name()).time(BuildMetrics.PHASE_CLEANUP);
+            try {
                 cleanupRemovedTags(source);
+            } finally {
+                cleanupTimer.close();
             }
         }
+    }
 
-        return 0;
+    /**
+     * Renders the AsciiDoc pages and rebuilds the search index, which both cover the whole content tree.
+     */
+    private void rebuildSite(List<Source> sources, AsciiDocRenderer asciiDocRenderer) throws IOException {
+        asciiDocRenderer.renderAll(changes);
+
+        Map<Path, String> versionDirectories = new HashMap<>();
+        Map<Path, String> refDirectories = new HashMap<>();
+        for (Source source : sources) {
+            Path sourceDir = docsRootPath.resolve(source.outputPathOrName());
+            List<String> refs = new ArrayList<>(source.tags());
+            refs.add(0, source.developmentBranch());
+            for (String ref : refs) {
+                versionDirectories.put(sourceDir.resolve(ref), ref);
+                refDirectories.put(sourceDir.resolve(ref), source.name() + " " + ref);
+            }
+        }
+        linkProblems = new LinkValidator(docsRootPath, docsRootPath.toAbsolutePath().getParent().resolve("static"), refDirectories).validate();
+        new SearchIndexer(docsRootPath, versionDirectories).writeIndex(Paths.get(searchIndexDir));
+    }
+
+    /**
+     * @return True if the run should fail because the last validation of the rebuilt site found broken references
+     */
+    private boolean brokenLinks() {
+        if (failOnBrokenLinks && !linkProblems.isEmpty()) {
+            LOGGER.error("Found " + linkProblems.size() + " broken links, anchors, images or includes, see the warnings above");
+            return true;
+        }
+        return false;
+    }
+
+    private void writeChangesAndReport(ObjectMapper objectMapper, int finalConcurrencyLimit) throws IOException {
+        changes.write(objectMapper, changesPath != null ? Paths.get(changesPath) : Paths.get(cacheDir).resolve("changes.json"));
+
+        BuildMetrics.Report report = metrics.report(finalConcurrencyLimit);
+        metrics.writeReport(report, reportPath != null ? Paths.get(reportPath) : Paths.get(cacheDir).resolve("build-report.json"));
+        if (summary) {
+            metrics.logSummary(report);
+        }
     }
 }
@@ -0,0 +1,477 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+
+//JAVA 21+
+//DEPS info.picocli:picocli:4.6.3
+//DEPS ch.qos.reload4j:reload4j:1.2.19
+//DEPS com.fasterxml.jackson.core:jackson-core:2.18.2
+//DEPS com.fasterxml.jackson.core:jackson-annotations:2.18.2
+//DEPS com.fasterxml.jackson.core:jackson-databind:2.18.2
+
+package com.github.streamshub.site;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Logger;
+
+/**
+ * A compressed form of a file, written next to it with the encoding's extension so a web server can send it as is
+ * (e.g. nginx's {@code gzip_static} or Caddy's {@code precompressed}) instead of compressing it on every request.
+ */
+enum Encoding {
+    GZIP(".gz"),
+    ZSTD(".zst");
+
+    final String extension;
+
+    Encoding(String extension) {
+        this.extension = extension;
+    }
+}
+
+/**
+ * The compressed forms of each site file, keyed by the SHA-256 of its content. Hugo rewrites the whole site on every
+ * build, so the site folder can't tell which files changed, but their content can: a file with the same content as in
+ * a previous run gets the stored compressed forms rather than being compressed again. Stored files are read-only, as
+ * the site files are hard links to them where the filesystem allows.
+ */
+class CompressedStore {
+
+    static final Logger LOGGER = Logger.getLogger(CompressedStore.class);
+
+    /**
+     * Compresses a file into the given path.
+     */
+    @FunctionalInterface
+    interface Compressor {
+        void compress(Path source, Path target) throws IOException;
+    }
+
+    private final Path storeDir;
+    // The stored files used in this run, so the rest can be pruned
+    private final Set<Path> usedFiles = ConcurrentHashMap.newKeySet();
+
+    CompressedStore(Path storeDir) {
+        this.storeDir = storeDir;
+    }
+
+    /**
+     * @return Whether the compressed form was already stored
+     */
+    boolean contains(String sha, Encoding encoding) {
+        return Files.isRegularFile(storePath(sha, encoding));
+    }
+
+    /**
+     * Returns the path of the stored compressed form of a file, compressing it first if it isn't already stored.
+     */
+    Path get(Path source, String sha, Encoding encoding, Compressor compressor) throws IOException {
+        Path storedPath = storePath(sha, encoding);
+        usedFiles.add(storedPath);
+        if (Files.isRegularFile(storedPath)) {
+            return storedPath;
+        }
+
+        Files.createDirectories(storedPath.getParent());
+        Path tempPath = Files.createTempFile(storedPath.getParent(), sha, ".tmp");
+        try {
+            compressor.compress(source, tempPath);
+            tempPath.toFile().setReadOnly();
+            Files.move(tempPath, storedPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+        return storedPath;
+    }
+
+    /**
+     * Replaces {@code target} with a hard link to the stored file, falling back to a copy if the filesystem doesn't
+     * support hard links or the store is on a different filesystem.
+     */
+    static void link(Path storedPath, Path target) throws IOException {
+        if (Files.exists(target) && Files.isSameFile(storedPath, target)) {
+            return;
+        }
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, storedPath);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            Files.copy(storedPath, target);
+        }
+    }
+
+    /**
+     * Removes the stored files which weren't used by this run, so the store only grows with the site's current content.
+     */
+    void prune() throws IOException {
+        if (!Files.exists(storeDir)) {
+            return;
+        }
+
+        List<Path> unusedFiles;
+        try (Stream<Path> paths = Files.walk(storeDir)) {
+            unusedFiles = paths
+                .filter(Files::isRegularFile)
+                .filter(path -> !usedFiles.contains(path))
+                .toList();
+        }
+        for (Path unusedFile : unusedFiles) {
+            Files.delete(unusedFile);
+        }
+
+        if (!unusedFiles.isEmpty()) {
+            LOGGER.info("Pruned " + unusedFiles.size() + " unused compressed files from " + storeDir);
+        }
+    }
+
+    private Path storePath(String sha, Encoding encoding) {
+        return storeDir.resolve(sha.substring(0, 2)).resolve(sha + encoding.extension);
+    }
+}
+
+@Command(name = "precompress", mixinStandardHelpOptions = true, version = "precompress 0.1",
+        description = "Writes gzip and zstd compressed copies of the compressible files of the generated site next to them")
+class Precompress implements Callable<Integer> {
+
+    static final Logger LOGGER = Logger.getLogger(Precompress.class);
+
+    // Text formats Hugo generates or copies into the site; images, fonts and archives are already compressed
+    static final Set<String> COMPRESSIBLE_EXTENSIONS = Set.of(
+        "html", "htm", "css", "js", "mjs", "json", "xml", "svg", "txt", "map", "webmanifest", "ico");
+
+    /**
+     * What was written for a site file, so the next run can tell whether it's unchanged.
+     *
+     * @param sha The SHA-256 of the file's content
+     * @param encodings The compressed forms written next to it, which are left out where they aren't any smaller
+     */
+    record PrecompressedFile(String sha, Set<Encoding> encodings) {}
+
+    /**
+     * @param files The compressible files
+     * @param unchanged The files whose content and compressed forms were already in place from the last run
+     * @param reused The files whose compressed forms were taken from the store rather than compressed again
+     * @param compressed The files which were compressed
+     * @param bytes The total size of the files
+     * @param encodedBytes For each encoding, the total size of the files as they'll be served in that encoding, which
+     *                     is the original size for those not worth compressing
+     * @param savedBytes For each encoding, how many fewer bytes are served in that encoding
+     */
+    record TypeReport(long files, long unchanged, long reused, long compressed, long bytes,
+                      Map<Encoding, Long> encodedBytes, Map<Encoding, Long> savedBytes) {}
+
+    record Report(String startedAt, long durationMillis, List<Encoding> encodings, Map<String, TypeReport> types) {}
+
+    /**
+     * The running totals for one file type.
+     */
+    static class TypeTotals {
+        final LongAdder files = new LongAdder();
+        final LongAdder unchanged = new LongAdder();
+        final LongAdder reused = new LongAdder();
+        final LongAdder compressed = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final Map<Encoding, LongAdder> encodedBytes = new ConcurrentHashMap<>();
+
+        TypeReport report() {
+            Map<Encoding, Long> encoded = new TreeMap<>();
+            Map<Encoding, Long> saved = new TreeMap<>();
+            encodedBytes.forEach((encoding, total) -> {
+                encoded.put(encoding, total.sum());
+                saved.put(encoding, bytes.sum() - total.sum());
+            });
+            return new TypeReport(files.sum(), unchanged.sum(), reused.sum(), compressed.sum(), bytes.sum(), encoded, saved);
+        }
+    }
+
+    @Option(names = {"-s", "--site"}, description = "The generated site folder (default: ${DEFAULT-VALUE})", defaultValue = "public")
+    private String siteDir;
+
+    @Option(names = {"--cache-dir"}, description = "Directory for build state kept between runs, such as the compressed files (default: ${DEFAULT-VALUE})", defaultValue = ".docbuilder")
+    private String cacheDir;
+
+    @Option(names = {"--min-size"}, description = "Smallest file in bytes worth compressing (default: ${DEFAULT-VALUE})", defaultValue = "1024")
+    private long minSize;
+
+    @Option(names = {"--gzip-level"}, description = "gzip compression level, from 1 to 9 (default: ${DEFAULT-VALUE})", defaultValue = "9")
+    private int gzipLevel;
+
+    @Option(names = {"--zstd-level"}, description = "zstd compression level, from 1 to 19 (default: ${DEFAULT-VALUE})", defaultValue = "19")
+    private int zstdLevel;
+
+    @Option(names = {"--no-zstd"}, description = "Don't write zstd compressed files, even if the zstd command is available")
+    private boolean noZstd;
+
+    @Option(names = {"--report"}, description = "Path to write the JSON report to (default: precompress-report.json in the cache directory)")
+    private String reportPath;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, TypeTotals> totals = new ConcurrentHashMap<>();
+    private final Map<String, PrecompressedFile> precompressedFiles = new ConcurrentHashMap<>();
+    private List<Encoding> encodings;
+    private CompressedStore store;
+    private Map<String, PrecompressedFile> previousFiles;
+
+    public static void main(String... args) {
+        BasicConfigurator.configure();
+        int exitCode = new CommandLine(new Precompress()).execute(args);
+        System.exit(exitCode);
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        Instant startedAt = Instant.now();
+        long startNanos = System.nanoTime();
+
+        Path sitePath = Paths.get(siteDir);
+        if (!Files.isDirectory(sitePath)) {
+            LOGGER.error("Site folder " + sitePath + " does not exist, so there is nothing to compress. Build the site with Hugo first.");
+            return 1;
+        }
+
+        encodings = new ArrayList<>(List.of(Encoding.GZIP));
+        if (noZstd) {
+            LOGGER.info("Skipping zstd compression as --no-zstd was passed");
+        } else if (zstdAvailable()) {
+            encodings.add(Encoding.ZSTD);
+        } else {
+            LOGGER.info("Skipping zstd compression as the zstd command is not available");
+        }
+
+        Path statePath = Paths.get(cacheDir).resolve("precompress-state.json");
+        previousFiles = Files.exists(statePath)
+            ? mapper.readValue(statePath.toFile(), new TypeReference<Map<String, PrecompressedFile>>() {})
+            : Map.of();
+        store = new CompressedStore(Paths.get(cacheDir).resolve("precompressed"));
+
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(sitePath)) {
+            files = paths.filter(Files::isRegularFile).filter(this::isCompressible).toList();
+        }
+        // Compression is CPU bound, so the common pool's one thread per core is the right parallelism
+        files.parallelStream().forEach(file -> {
+            try {
+                precompress(sitePath, file);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to compress " + file, e);
+            }
+        });
+
+        removeStaleFiles(sitePath);
+        store.prune();
+        Files.createDirectories(statePath.getParent());
+        mapper.writeValue(statePath.toFile(), new TreeMap<>(precompressedFiles));
+
+        Map<String, TypeReport> types = new TreeMap<>();
+        totals.forEach((type, typeTotals) -> types.put(type, typeTotals.report()));
+        Report report = new Report(startedAt.toString(), Duration.ofNanos(System.nanoTime() - startNanos).toMillis(), encodings, types);
+        Path reportFile = reportPath != null ? Paths.get(reportPath) : Paths.get(cacheDir).resolve("precompress-report.json");
+        Files.createDirectories(reportFile.toAbsolutePath().getParent());
+        mapper.writerWithDefaultPrettyPrinter().writeValue(reportFile.toFile(), report);
+        logSummary(report);
+        LOGGER.info("Wrote precompress report to " + reportFile);
+        return 0;
+    }
+
+    private boolean isCompressible(Path file) {
+        return COMPRESSIBLE_EXTENSIONS.contains(extension(file));
+    }
+
+    private void precompress(Path sitePath, Path file) throws IOException {
+        String relativePath = sitePath.relativize(file).toString();
+        long size = Files.size(file);
+        if (size < minSize) {
+            return;
+        }
+
+        TypeTotals typeTotals = totals.computeIfAbsent(extension(file), type -> new TypeTotals());
+        typeTotals.files.increment();
+        typeTotals.bytes.add(size);
+
+        String sha = sha256(file);
+        PrecompressedFile previous = previousFiles.get(relativePath);
+        boolean unchanged = previous != null && previous.sha().equals(sha)
+            && encodings.stream().allMatch(encoding -> !previous.encodings().contains(encoding) || Files.exists(sibling(file, encoding)));
+        boolean stored = encodings.stream().allMatch(encoding -> store.contains(sha, encoding));
+
+        Set<Encoding> written = new TreeSet<>();
+        for (Encoding encoding : encodings) {
+            Path storedPath = store.get(file, sha, encoding, (source, target) -> compress(encoding, source, target));
+            long encodedSize = Files.size(storedPath);
+            Path sibling = sibling(file, encoding);
+            // Serving a compressed form which isn't smaller only costs the client the decompression
+            if (encodedSize < size) {
+                if (!unchanged || !previous.encodings().contains(encoding)) {
+                    CompressedStore.link(storedPath, sibling);
+                }
+                written.add(encoding);
+                typeTotals.encodedBytes.computeIfAbsent(encoding, key -> new LongAdder()).add(encodedSize);
+            } else {
+                Files.deleteIfExists(sibling);
+                typeTotals.encodedBytes.computeIfAbsent(encoding, key -> new LongAdder()).add(size);
+            }
+        }
+        precompressedFiles.put(relativePath, new PrecompressedFile(sha, written));
+
+        if (unchanged) {
+            typeTotals.unchanged.increment();
+        } else if (stored) {
+            typeTotals.reused.increment();
+        } else {
+            typeTotals.compressed.increment();
+        }
+    }
+
+    private void compress(Encoding encoding, Path source, Path target) throws IOException {
+        switch (encoding) {
+            case GZIP -> gzip(source, target);
+            case ZSTD -> zstd(source, target);
+        }
+    }
+
+    /**
+     * Removes the compressed forms written by the last run for files which no longer exist or are no longer
+     * compressed, leaving any other compressed files in the site alone.
+     */
+    private void removeStaleFiles(Path sitePath) throws IOException {
+        int removed = 0;
+        for (Map.Entry<String, PrecompressedFile> previous : previousFiles.entrySet()) {
+            Path file = sitePath.resolve(previous.getKey());
+            PrecompressedFile current = precompressedFiles.get(previous.getKey());
+            for (Encoding encoding : previous.getValue().encodings()) {
+                if ((current == null || !current.encodings().contains(encoding)) && Files.deleteIfExists(sibling(file, encoding))) {
+                    removed++;
+                }
+            }
+        }
+        if (removed > 0) {
+            LOGGER.info("Removed " + removed + " compressed files of site files which have been removed or are no longer compressed");
+        }
+    }
+
+    private void gzip(Path source, Path target) throws IOException {
+        try (InputStream in = Files.newInputStream(source);
+             OutputStream out = new GZIPOutputStream(Files.newOutputStream(target)) {
+                 {
+                     def.setLevel(gzipLevel);
+                 }
+             }) {
+            in.transferTo(out);
+        }
+    }
+
+    private void zstd(Path source, Path target) throws IOException {
+        // The files are already compressed in parallel, so each zstd process only needs one thread
+        Process process = new ProcessBuilder("zstd", "-q", "-f", "-T1", "-" + zstdLevel, "-o", target.toString(), source.toString())
+            .redirectErrorStream(true)
+            .start();
+        try {
+            String output = new String(process.getInputStream().readAllBytes());
+            if (process.waitFor() != 0) {
+                throw new IOException("zstd failed to compress " + source + ": " + output.strip());
+            }
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted compressing " + source + " with zstd", e);
+        }
+    }
+
+    private static boolean zstdAvailable() {
+        try {
+            Process process = new ProcessBuilder("zstd", "--version").redirectErrorStream(true).start();
+            process.getInputStream().readAllBytes();
+            return process.waitFor(10, TimeUnit.SECONDS) && process.exitValue() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void logSummary(Report report) {
+        StringBuilder summary = new StringBuilder();
+        String rowFormat = "%n%-12s %8s %9s %8s %11s %14s %14s %14s";
+        summary.append(String.format(rowFormat, "Type", "Files", "Unchanged", "Reused", "Compressed", "Bytes",
+            "gzip saved", "zstd saved"));
+        for (Map.Entry<String, TypeReport> type : report.types().entrySet()) {
+            TypeReport typeReport = type.getValue();
+            summary.append(String.format(rowFormat,
+                type.getKey(),
+                typeReport.files(),
+                typeReport.unchanged(),
+                typeReport.reused(),
+                typeReport.compressed(),
+                typeReport.bytes(),
+                savedColumn(typeReport, Encoding.GZIP),
+                savedColumn(typeReport, Encoding.ZSTD)));
+        }
+        summary.append(String.format("%nTotal run time: %d ms", report.durationMillis()));
+
+        LOGGER.info("Precompress summary:" + summary);
+    }
+
+    private static String savedColumn(TypeReport typeReport, Encoding encoding) {
+        Long saved = typeReport.savedBytes().get(encoding);
+        if (saved == null) {
+            return "-";
+        }
+        return saved + (typeReport.bytes() > 0 ? String.format(" (%d%%)", saved * 100 / typeReport.bytes()) : "");
+    }
+
+    private static Path sibling(Path file, Encoding encoding) {
+        return file.resolveSibling(file.getFileName() + encoding.extension);
+    }
+
+    private static String extension(Path file) {
+        String fileName = file.getFileName().toString();
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0 ? "" : fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private static String sha256(Path file) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}